@@ -0,0 +1,198 @@
+package de.terrestris.shogun.migrator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.terrestris.shogun.migrator.shogun2.BootMigrator;
+import de.terrestris.shogun.migrator.shogun2.Shogun2Migrator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the migration transforms. Uses the test fixtures as they are and scaled up synthetic variants of
+ * them. Run with {@code mvn -Pbenchmark test-compile exec:exec}, the GC profiler reports the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MigrationBenchmark {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Number of children per folder in synthetic layer trees.
+   */
+  private static final int FANOUT = 4;
+
+  private static JsonNode read(String file) throws IOException {
+    return MAPPER.readTree(MigrationBenchmark.class.getResource(file));
+  }
+
+  private static Map<Integer, Integer> idMap(int size) {
+    Map<Integer, Integer> idMap = new HashMap<>();
+    for (int i = 0; i < size; ++i) {
+      idMap.put(i, i + 1000);
+    }
+    return idMap;
+  }
+
+  private static int leaves(int depth) {
+    return (int) Math.pow(FANOUT, depth);
+  }
+
+  /**
+   * Create a shogun2 style layer tree with the given depth.
+   */
+  private static ObjectNode shogun2Tree(int depth, int[] nextId) {
+    ObjectNode node = MAPPER.createObjectNode();
+    node.put("checked", true);
+    node.put("text", "Folder " + depth);
+    if (depth == 0) {
+      node.put("layer", nextId[0]++);
+      return node;
+    }
+    ArrayNode children = node.putArray("children");
+    for (int i = 0; i < FANOUT; ++i) {
+      children.add(shogun2Tree(depth - 1, nextId));
+    }
+    return node;
+  }
+
+  /**
+   * Create a SHOGun boot style layer tree with the given depth.
+   */
+  private static ObjectNode bootTree(int depth, int[] nextId) {
+    ObjectNode node = MAPPER.createObjectNode();
+    node.put("checked", true);
+    node.put("title", "Folder " + depth);
+    if (depth == 0) {
+      node.put("layerId", nextId[0]++);
+      return node;
+    }
+    ArrayNode children = node.putArray("children");
+    for (int i = 0; i < FANOUT; ++i) {
+      children.add(bootTree(depth - 1, nextId));
+    }
+    return node;
+  }
+
+  @State(Scope.Benchmark)
+  public static class LayerState {
+
+    @Param({"/layer1.json", "/layer8.json"})
+    public String fixture;
+
+    /**
+     * Number of synthetic columnAliasesDe entries to add, 0 uses the fixture as is.
+     */
+    @Param({"0", "500"})
+    public int aliases;
+
+    public JsonNode layer;
+
+    @Setup
+    public void setup() throws IOException {
+      ObjectNode node = (ObjectNode) read(fixture);
+      if (aliases > 0) {
+        ObjectNode columnAliases = node.putObject("columnAliasesDe");
+        for (int i = 0; i < aliases; ++i) {
+          columnAliases.put("column_" + i, "Spalte " + i);
+        }
+      }
+      layer = node;
+    }
+
+  }
+
+  @State(Scope.Benchmark)
+  public static class Shogun2ApplicationState {
+
+    @Param({"/1.json", "/2.json", "/3.json"})
+    public String fixture;
+
+    /**
+     * Depth of a synthetic layer tree replacing the fixture's tree, 0 uses the fixture as is.
+     */
+    @Param({"0", "6"})
+    public int depth;
+
+    public JsonNode application;
+
+    public Map<Integer, Integer> idMap;
+
+    @Setup
+    public void setup() throws IOException {
+      ObjectNode node = (ObjectNode) read(fixture);
+      if (depth > 0) {
+        node.set("layerTree", shogun2Tree(depth, new int[]{0}));
+      }
+      application = node;
+      idMap = idMap(leaves(depth));
+    }
+
+  }
+
+  @State(Scope.Benchmark)
+  public static class BootApplicationState {
+
+    @Param({"/migrated/1.json", "/migrated/2.json", "/migrated/3.json"})
+    public String fixture;
+
+    /**
+     * Depth of a synthetic layer tree replacing the fixture's tree, 0 uses the fixture as is.
+     */
+    @Param({"0", "6"})
+    public int depth;
+
+    public ObjectNode application;
+
+    public Map<Integer, Integer> idMap;
+
+    @Setup
+    public void setup() throws IOException {
+      ObjectNode node = (ObjectNode) read(fixture);
+      if (depth > 0) {
+        node.set("layerTree", bootTree(depth, new int[]{0}));
+      }
+      application = node;
+      idMap = idMap(leaves(depth));
+    }
+
+  }
+
+  @Benchmark
+  public byte[] shogun2MigrateLayer(LayerState state) throws IOException {
+    return Shogun2Migrator.migrateLayer(state.layer, null);
+  }
+
+  @Benchmark
+  public byte[] shogun2MigrateApplication(Shogun2ApplicationState state) throws Exception {
+    return Shogun2Migrator.migrateApplication(state.application, state.idMap, null, null, null);
+  }
+
+  /**
+   * Note that this includes copying the input, since BootMigrator.migrateApplication modifies it in place.
+   */
+  @Benchmark
+  public byte[] bootMigrateApplication(BootApplicationState state) throws IOException {
+    return BootMigrator.migrateApplication(state.application.deepCopy(), state.idMap);
+  }
+
+}
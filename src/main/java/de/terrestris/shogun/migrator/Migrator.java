@@ -1,29 +1,57 @@
 package de.terrestris.shogun.migrator;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpServer;
 import de.terrestris.shogun.migrator.model.HostDto;
 import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.MigrationOptions;
 import de.terrestris.shogun.migrator.model.Theme;
+import de.terrestris.shogun.migrator.snapshot.SnapshotWriter;
 import de.terrestris.shogun.migrator.spi.ShogunMigrator;
+import de.terrestris.shogun.migrator.util.ApplicationTemplate;
+import de.terrestris.shogun.migrator.util.AsyncApiUtil;
+import de.terrestris.shogun.migrator.util.CheckpointJournal;
+import de.terrestris.shogun.migrator.util.Deduplicator;
+import de.terrestris.shogun.migrator.util.DryRunReport;
+import de.terrestris.shogun.migrator.util.GzipCodec;
+import de.terrestris.shogun.migrator.util.HostClient;
+import de.terrestris.shogun.migrator.util.Metrics;
+import de.terrestris.shogun.migrator.util.MigrationException;
+import de.terrestris.shogun.migrator.util.Retry;
+import de.terrestris.shogun.migrator.util.TokenBucket;
+import de.terrestris.shogun.migrator.util.UrlRewriter;
+import de.terrestris.shogun.migrator.util.TargetIndex;
 import lombok.extern.log4j.Log4j2;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 
 import static de.terrestris.shogun.migrator.util.ApiUtil.*;
 
 @Log4j2
 @Command(name = "SHOGun-Migrator", version = "0.0.1", mixinStandardHelpOptions = true)
-public class Migrator implements Callable<Boolean> {
+public class Migrator implements Callable<Integer> {
 
-  enum Type { shogun2, boot }
+  enum Type { shogun2, boot, snapshot }
 
   @Option(
     names = {"-p", "--public"},
@@ -46,21 +74,19 @@ public class Migrator implements Callable<Boolean> {
   @Option(
     names = {"-sh", "--source-host"},
     required = true,
-    description = "the source API endpoint, e.g. https://my-shogun.com/shogun2-webapp/"
+    description = "the source API endpoint, e.g. https://my-shogun.com/shogun2-webapp/, or the snapshot file for the snapshot type"
   )
   private String sourceHost;
 
   @Option(
     names = {"-su", "--source-user"},
-    required = true,
-    description = "the source admin username"
+    description = "the source admin username, required unless the type is snapshot"
   )
   private String sourceUser;
 
   @Option(
     names = {"-sp", "--source-password"},
-    required = true,
-    description = "the source admin password"
+    description = "the source admin password, required unless the type is snapshot"
   )
   private String sourcePassword;
 
@@ -72,29 +98,25 @@ public class Migrator implements Callable<Boolean> {
 
   @Option(
     names = {"-th", "--target-host"},
-    required = true,
     description = "the target API endpoint, e.g. https://my-shogun-boot.com/"
   )
   private String targetHost;
 
   @Option(
     names = {"-tu", "--target-user"},
-    required = true,
-    description = "the target admin username"
+    description = "the target admin username, required unless exporting"
   )
   private String targetUser;
 
   @Option(
     names = {"-tp", "--target-password"},
-    required = true,
-    description = "the target admin password"
+    description = "the target admin password, required unless exporting"
   )
   private String targetPassword;
 
   @Option(
     names = {"-tc", "--target-client"},
-    required = true,
-    description = "the target client id"
+    description = "the target client id, required unless exporting"
   )
   private String targetClient;
 
@@ -122,6 +144,13 @@ public class Migrator implements Callable<Boolean> {
   )
   private String replaceLayerUrls = null;
 
+  @Option(
+    names = {"-rlf", "--replace-layer-url-file"},
+    description = "a file with layer URL replacement rules, one 'exact|prefix|host <from> <to>' rule per line. " +
+      "The rules also apply to legend URLs"
+  )
+  private String replaceLayerUrlFile = null;
+
   @Option(
     names = {"-pco", "--primary-color"},
     description = "the primary color for the app client config theme"
@@ -158,6 +187,135 @@ public class Migrator implements Callable<Boolean> {
   )
   private String toolConfigFile = null;
 
+  @Option(
+    names = {"-mc", "--max-connections"},
+    description = "the maximum number of pooled keep-alive connections per host, default is ${DEFAULT-VALUE}"
+  )
+  private int maxConnections = HostClient.DEFAULT_MAX_CONNECTIONS;
+
+  @Option(
+    names = {"-ps", "--page-size"},
+    description = "the page size used when fetching entities from SHOGun boot instances, default is ${DEFAULT-VALUE}"
+  )
+  private int pageSize = HostDto.DEFAULT_PAGE_SIZE;
+
+  @Option(
+    names = {"-par", "--parallelism"},
+    description = "the number of layers to migrate (or entities to delete when clearing) concurrently, default is ${DEFAULT-VALUE}"
+  )
+  private int parallelism = 1;
+
+  @Option(
+    names = {"-apar", "--application-parallelism"},
+    description = "the number of applications to migrate concurrently, defaults to the layer parallelism"
+  )
+  private Integer applicationParallelism = null;
+
+  @Option(
+    names = {"-ppar", "--permission-parallelism"},
+    description = "the number of new layers to make public concurrently with --public, while the next layers are " +
+      "being saved. Defaults to the layer parallelism"
+  )
+  private Integer permissionParallelism = null;
+
+  @Option(
+    names = {"-rt", "--retries"},
+    description = "the maximum number of attempts (1 to 20) for requests writing to the target, transient " +
+      "failures are retried with backoff of up to 30 seconds, default is ${DEFAULT-VALUE}"
+  )
+  private int retries = Retry.DEFAULT_ATTEMPTS;
+
+  @Option(
+    names = {"-rto", "--request-timeout"},
+    description = "the timeout in seconds for connecting to a host and for waiting for a response, so a stalled " +
+      "host fails the request (which may then be retried) instead of blocking the migration, default is " +
+      "${DEFAULT-VALUE}"
+  )
+  private int requestTimeout = (int) HostClient.DEFAULT_TIMEOUT.toSeconds();
+
+  @Option(
+    names = {"-srr", "--source-request-rate"},
+    description = "the maximum number of requests per second sent to the source, to protect instances that are still " +
+      "in use. Writes to the target are not limited"
+  )
+  private Double sourceRequestRate = null;
+
+  @Option(
+    names = {"-sbr", "--source-byte-rate"},
+    description = "the maximum number of response bytes per second read from the source"
+  )
+  private Long sourceByteRate = null;
+
+  @Option(
+    names = {"-gz", "--gzip-requests"},
+    description = "compress the request bodies sent to the target with gzip. The target (or a proxy in front of it) " +
+      "must support the gzip Content-Encoding. Responses are compressed if the server supports it regardless"
+  )
+  private boolean gzipRequests = false;
+
+  @Option(
+    names = {"-e", "--export"},
+    description = "export the raw source layers and applications to a snapshot file instead of migrating them. " +
+      "Use a file name ending with .gz to compress the snapshot. The snapshot can be migrated later using the snapshot type, " +
+      "but not exported again"
+  )
+  private String export = null;
+
+  @Option(
+    names = {"-j", "--journal"},
+    description = "a file to record every migrated layer and application in, so an interrupted migration can be resumed"
+  )
+  private String journal = null;
+
+  @Option(
+    names = {"-r", "--resume"},
+    description = "resume an interrupted migration, skipping the entities recorded in the journal. Requires --journal"
+  )
+  private boolean resume = false;
+
+  @Option(
+    names = {"-i", "--incremental"},
+    description = "only migrate entities that are new or have been modified since the last completed run recorded in the journal. " +
+      "Modified entities update their already migrated counterparts. Requires --journal"
+  )
+  private boolean incremental = false;
+
+  @Option(
+    names = {"-u", "--upsert"},
+    description = "update existing target layers (same name, URL and layer names) and applications (same name) instead " +
+      "of creating new ones. Unchanged entities are skipped"
+  )
+  private boolean upsert = false;
+
+  @Option(
+    names = {"-dl", "--dedup-layers"},
+    description = "save identical migrated layers only once and let all applications reference the single copy"
+  )
+  private boolean dedupLayers = false;
+
+  @Option(
+    names = {"-d", "--dry-run"},
+    description = "migrate without writing anything to the target and report the payload sizes, unmappable layer types, " +
+      "dangling layer ids and timings. Target options are optional, they are only used to build the --upsert index"
+  )
+  private boolean dryRun = false;
+
+  @Option(
+    names = {"-mf", "--metrics-file"},
+    description = "write metrics like HTTP latencies per operation and status code to the files <prefix>.prom " +
+      "(Prometheus text format) and <prefix>.json at the end of the run"
+  )
+  private String metricsFile = null;
+
+  @Option(
+    names = {"-mp", "--metrics-port"},
+    description = "serve the metrics on http://127.0.0.1:<port>/metrics (Prometheus) and /metrics.json while migrating"
+  )
+  private Integer metricsPort = null;
+
+  @Spec
+  private CommandSpec spec;
+
   private static ShogunMigrator getMigrator(Type type) {
     ServiceLoader<ShogunMigrator> loader = ServiceLoader.load(ShogunMigrator.class);
     for (ShogunMigrator migrator : loader) {
@@ -169,45 +327,215 @@ public class Migrator implements Callable<Boolean> {
   }
 
   private void clear(HostDto target) throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
-    JsonNode node = fetch(target, "applications", true);
-    for (JsonNode app : node) {
-      delete(target, String.format("applications/%s", app.get("id").asInt()));
+    // applications reference layers, so they need to be deleted first
+    clear(target, "applications");
+    clear(target, "layers");
+  }
+
+  private void clear(HostDto target, String resource) throws IOException, KeyStoreException, NoSuchAlgorithmException,
+    KeyManagementException {
+    JsonNode node = fetch(target, resource, true);
+    log.info("Deleting {} {}...", node.size(), resource);
+    // the deletions are sent with the asynchronous client, so they need no thread each while in flight
+    Semaphore inFlight = new Semaphore(Math.max(1, parallelism));
+    List<CompletableFuture<Void>> deletions = new ArrayList<>();
+    for (JsonNode entity : node) {
+      String path = String.format("%s/%s", resource, entity.get("id").asInt());
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new MigrationException(e);
+      }
+      deletions.add(AsyncApiUtil.delete(target, path).whenComplete((ignored, error) -> {
+        inFlight.release();
+        if (error != null) {
+          log.warn("Unable to delete {}: {}", path, error.getMessage());
+        }
+      }));
     }
-    node = fetch(target, "layers", true);
-    for (JsonNode app : node) {
-      delete(target, String.format("layers/%s", app.get("id").asInt()));
+    try {
+      CompletableFuture.allOf(deletions.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      throw new MigrationException(e.getCause());
     }
+    log.info("Deleted {} {}.", deletions.size(), resource);
   }
 
-  @Override
-  public Boolean call() throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+  private void validate() {
+    if (type != Type.snapshot && (sourceUser == null || sourcePassword == null)) {
+      throw new ParameterException(spec.commandLine(), "Missing required options: --source-user and --source-password");
+    }
+    ShogunMigrator migrator = getMigrator(type);
+    if (export != null && migrator != null && !migrator.supportsExport()) {
+      throw new ParameterException(spec.commandLine(),
+        String.format("--export is not supported by the %s type", type));
+    }
+    if (export == null && !dryRun && (targetHost == null || targetUser == null || targetPassword == null || targetClient == null)) {
+      throw new ParameterException(spec.commandLine(),
+        "Missing required options: --target-host, --target-user, --target-password and --target-client");
+    }
+    if ((resume || incremental) && journal == null) {
+      throw new ParameterException(spec.commandLine(),
+        "Missing required option: --journal is required to --resume or for --incremental migrations");
+    }
+    if ((resume || incremental || upsert) && clear) {
+      throw new ParameterException(spec.commandLine(),
+        "--resume, --incremental and --upsert can not be combined with --clear");
+    }
+    if (dryRun && journal != null) {
+      throw new ParameterException(spec.commandLine(), "--dry-run can not be combined with --journal");
+    }
+    if (dryRun && upsert && targetHost == null) {
+      throw new ParameterException(spec.commandLine(), "Missing required option: --target-host is required to --upsert");
+    }
+    if ((sourceRequestRate != null && sourceRequestRate <= 0) || (sourceByteRate != null && sourceByteRate <= 0)) {
+      throw new ParameterException(spec.commandLine(), "--source-request-rate and --source-byte-rate must be positive");
+    }
+    if (requestTimeout <= 0) {
+      throw new ParameterException(spec.commandLine(), "--request-timeout must be positive");
+    }
+    if (retries < 1 || retries > Retry.MAX_ATTEMPTS) {
+      throw new ParameterException(spec.commandLine(), "--retries must be between 1 and " + Retry.MAX_ATTEMPTS);
+    }
+  }
+
+  private int getPermissionParallelism() {
+    return permissionParallelism == null ? parallelism : permissionParallelism;
+  }
+
+  private HostDto createSource() {
     HostDto source = new HostDto(sourceHost, sourceUser, sourcePassword);
-    if (!source.getHostname().endsWith("/")) {
+    if (type != Type.snapshot && !source.getHostname().endsWith("/")) {
       source.setHostname(source.getHostname() + "/");
     }
     source.setClientId(sourceClient);
-    getToken(source);
+    source.setMaxConnections(maxConnections);
+    source.setPageSize(pageSize);
+    source.setRequestTimeout(Duration.ofSeconds(requestTimeout));
+    if (sourceRequestRate != null) {
+      source.setRequestRate(new TokenBucket("source requests", sourceRequestRate));
+    }
+    if (sourceByteRate != null) {
+      source.setByteRate(new TokenBucket("source bytes", sourceByteRate));
+    }
+    return source;
+  }
+
+  private HostDto createTarget() {
+    if (targetHost == null) {
+      if (dryRun) {
+        HostDto target = new HostDto(null, null, null);
+        target.setDryRun(new DryRunReport());
+        return target;
+      }
+      return null;
+    }
     HostDto target = new HostDto(targetHost, targetUser, targetPassword);
     if (!target.getHostname().endsWith("/")) {
       target.setHostname(target.getHostname() + "/");
     }
     target.setClientId(targetClient);
-    getToken(target);
-    ShogunMigrator migrator = getMigrator(type);
-    if (migrator == null) {
-      log.error("Unable to find migrator for type {}, exiting.", type);
-      System.exit(1);
-    }
-    if (clear) {
-      log.info("Deleting old entities...");
-      clear(target);
-      log.info("Done.");
-    }
-    migrator.initialize(source, target);
-    Legal legal = new Legal(contact, imprint, privacy);
-    Theme theme = new Theme(primaryColor, secondaryColor, complementaryColor, logoPath, faviconPath);
-    migrator.migrateApplications(migrator.migrateLayers(layersPublic, replaceLayerUrls), legal, theme, toolConfigFile);
-    return true;
+    target.setPageSize(pageSize);
+    target.setRetries(retries);
+    target.setRequestTimeout(Duration.ofSeconds(requestTimeout));
+    target.setGzipRequests(gzipRequests);
+    // layers are saved and made public at the same time
+    int layerConnections = parallelism + (layersPublic ? getPermissionParallelism() : 0);
+    target.setMaxConnections(Math.max(maxConnections, Math.max(layerConnections,
+      applicationParallelism == null ? 0 : applicationParallelism)));
+    if (dryRun) {
+      target.setDryRun(new DryRunReport());
+    }
+    return target;
+  }
+
+  @Override
+  public Integer call() throws IOException, GeneralSecurityException {
+    validate();
+    HttpServer server = metricsPort == null ? null : Metrics.serve(metricsPort);
+    try {
+      return migrate();
+    } finally {
+      GzipCodec.logStats();
+      if (metricsFile != null) {
+        Metrics.write(metricsFile);
+      }
+      if (server != null) {
+        server.stop(0);
+      }
+    }
+  }
+
+  /**
+   * @return the exit code, non-zero if some entities could not be migrated
+   */
+  private int migrate() throws IOException, GeneralSecurityException {
+    HostDto source = createSource();
+    HostDto target = createTarget();
+    try (source; target) {
+      getToken(source);
+      ShogunMigrator migrator = getMigrator(type);
+      if (migrator == null) {
+        log.error("Unable to find migrator for type {}, exiting.", type);
+        System.exit(1);
+      }
+      MigrationOptions options = new MigrationOptions();
+      options.setParallelism(parallelism);
+      options.setApplicationParallelism(applicationParallelism == null ? parallelism : applicationParallelism);
+      options.setPermissionParallelism(getPermissionParallelism());
+      Legal legal = new Legal(contact, imprint, privacy);
+      Theme theme = new Theme(primaryColor, secondaryColor, complementaryColor, logoPath, faviconPath);
+      options.setApplicationTemplate(ApplicationTemplate.of(legal, theme, toolConfigFile));
+      migrator.initialize(source, target, options);
+      if (export != null) {
+        log.info("Exporting source to {}...", export);
+        try (SnapshotWriter writer = new SnapshotWriter(Path.of(export), type.toString(), migrator.sourceTime())) {
+          migrator.export(writer);
+        }
+        return CommandLine.ExitCode.OK;
+      }
+      getToken(target);
+      if (clear && dryRun) {
+        log.info("Not deleting old entities in a dry run.");
+      } else if (clear) {
+        log.info("Deleting old entities...");
+        clear(target);
+        log.info("Done.");
+      }
+      if (upsert) {
+        options.setTargetIndex(TargetIndex.load(target));
+      }
+      options.setUrlRewriter(UrlRewriter.compile(replaceLayerUrls,
+        replaceLayerUrlFile == null ? null : Path.of(replaceLayerUrlFile)));
+      if (dedupLayers) {
+        options.setLayerDeduplicator(new Deduplicator("layer"));
+      }
+      try (CheckpointJournal checkpoints = journal == null ? null :
+        new CheckpointJournal(Path.of(journal), resume, incremental)) {
+        options.setJournal(checkpoints);
+        if (checkpoints != null) {
+          checkpoints.start(migrator.sourceTime());
+        }
+        long start = System.currentTimeMillis();
+        Map<Integer, Integer> idMap = migrator.migrateLayers(layersPublic, replaceLayerUrls);
+        long layersDone = System.currentTimeMillis();
+        migrator.migrateApplications(idMap, legal, theme, toolConfigFile);
+        if (checkpoints != null) {
+          checkpoints.commit();
+        }
+        if (dryRun) {
+          target.getDryRun().recordPhase("layer", layersDone - start);
+          target.getDryRun().recordPhase("application", System.currentTimeMillis() - layersDone);
+          target.getDryRun().log();
+        }
+      }
+      if (options.getFailures().get() > 0) {
+        log.error("{} migration tasks failed, see above.", options.getFailures().get());
+        return CommandLine.ExitCode.SOFTWARE;
+      }
+    }
+    return CommandLine.ExitCode.OK;
   }
 
   public static void main(String[] args) {
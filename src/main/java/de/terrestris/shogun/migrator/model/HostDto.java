@@ -1,16 +1,50 @@
 package de.terrestris.shogun.migrator.model;
 
-import lombok.AllArgsConstructor;
+import de.terrestris.shogun.migrator.util.AdaptiveLimiter;
+import de.terrestris.shogun.migrator.util.DryRunReport;
+import de.terrestris.shogun.migrator.util.HostClient;
+import de.terrestris.shogun.migrator.util.Retry;
+import de.terrestris.shogun.migrator.util.TokenBucket;
+import de.terrestris.shogun.migrator.util.TokenManager;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 
 @Data
-@AllArgsConstructor
-public class HostDto {
+public class HostDto implements Closeable {
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  public static final Duration DEFAULT_REQUEST_TIMEOUT = HostClient.DEFAULT_TIMEOUT;
 
   public HostDto(String hostname, String username, String password) {
+    this(hostname, username, password, null, null);
+  }
+
+  /**
+   * Create a host from its connection settings. The clients, limiters and the token manager are created on demand and
+   * are not part of the constructor.
+   *
+   * @param hostname the API endpoint
+   * @param username the admin username
+   * @param password the admin password
+   * @param clientId the client id to fetch access tokens with, or null
+   * @param token    a fixed access token, or null
+   */
+  public HostDto(String hostname, String username, String password, String clientId, String token) {
     this.hostname = hostname;
     this.username = username;
     this.password = password;
+    this.clientId = clientId;
+    this.token = token;
   }
 
   private String hostname;
@@ -23,4 +57,116 @@ public class HostDto {
 
   private String token;
 
+  private int maxConnections = HostClient.DEFAULT_MAX_CONNECTIONS;
+
+  private int pageSize = DEFAULT_PAGE_SIZE;
+
+  /**
+   * The maximum number of attempts for write requests.
+   */
+  private int retries = Retry.DEFAULT_ATTEMPTS;
+
+  /**
+   * The connect, pool and read timeout of the pooled client and the timeout of each request sent with the
+   * asynchronous client, also used as its connect timeout.
+   */
+  private Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+  /**
+   * Whether request bodies are sent gzip compressed.
+   */
+  private boolean gzipRequests;
+
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private HostClient client;
+
+  /**
+   * If set, nothing is written to this host, the payloads are recorded in the report instead.
+   */
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private DryRunReport dryRun;
+
+  /**
+   * Manages the access token once it has been fetched, see {@link de.terrestris.shogun.migrator.util.ApiUtil#getToken}.
+   */
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private TokenManager tokenManager;
+
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private HttpClient asyncClient;
+
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private AdaptiveLimiter limiter;
+
+  /**
+   * If set, limits the number of requests per second sent to this host.
+   */
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private TokenBucket requestRate;
+
+  /**
+   * If set, limits the number of response bytes per second read from this host.
+   */
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  private TokenBucket byteRate;
+
+  /**
+   * Returns the pooled client for this host, creating it on first use.
+   *
+   * @return the client
+   */
+  public synchronized HostClient getClient() throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    if (client == null) {
+      client = new HostClient(maxConnections, requestTimeout);
+    }
+    return client;
+  }
+
+  /**
+   * Returns the asynchronous client for this host, creating it on first use.
+   *
+   * @return the client
+   */
+  public synchronized HttpClient getAsyncClient() throws KeyStoreException, NoSuchAlgorithmException,
+    KeyManagementException {
+    if (asyncClient == null) {
+      asyncClient = HostClient.createAsyncClient(requestTimeout);
+    }
+    return asyncClient;
+  }
+
+  /**
+   * Returns the limiter for write requests to this host, creating it on first use.
+   *
+   * @return the limiter
+   */
+  public synchronized AdaptiveLimiter getLimiter() {
+    if (limiter == null) {
+      limiter = new AdaptiveLimiter(hostname, maxConnections);
+    }
+    return limiter;
+  }
+
+  /**
+   * Closes the clients of this host, if any.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (client != null) {
+      client.close();
+      client = null;
+    }
+    if (asyncClient != null) {
+      asyncClient.close();
+      asyncClient = null;
+    }
+  }
+
 }
@@ -0,0 +1,57 @@
+package de.terrestris.shogun.migrator.model;
+
+import de.terrestris.shogun.migrator.util.ApplicationTemplate;
+import de.terrestris.shogun.migrator.util.CheckpointJournal;
+import de.terrestris.shogun.migrator.util.Deduplicator;
+import de.terrestris.shogun.migrator.util.TargetIndex;
+import de.terrestris.shogun.migrator.util.UrlRewriter;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Data
+@NoArgsConstructor
+public class MigrationOptions {
+
+  private int parallelism = 1;
+
+  private int applicationParallelism = 1;
+
+  /**
+   * The number of new layers to make public concurrently, while the next layers are being saved.
+   */
+  private int permissionParallelism = 1;
+
+  /**
+   * The journal to record migrated entities in, or null.
+   */
+  private CheckpointJournal journal;
+
+  /**
+   * The index of the existing target entities to upsert into, or null.
+   */
+  private TargetIndex targetIndex;
+
+  /**
+   * Maps identical migrated layers to a single target layer, or null.
+   */
+  private Deduplicator layerDeduplicator;
+
+  /**
+   * The compiled layer URL replacements, or null to compile them from the string passed to migrateLayers.
+   */
+  private UrlRewriter urlRewriter;
+
+  /**
+   * The legal info, theme and tool config to set in all applications, or null to build them from the values passed
+   * to migrateApplications.
+   */
+  private ApplicationTemplate applicationTemplate;
+
+  /**
+   * The number of failed migration tasks, added to by the migrators. The run fails if it is not zero at the end.
+   */
+  private final AtomicInteger failures = new AtomicInteger();
+
+}
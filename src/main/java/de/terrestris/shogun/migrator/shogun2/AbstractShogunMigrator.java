@@ -0,0 +1,313 @@
+package de.terrestris.shogun.migrator.shogun2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.terrestris.shogun.migrator.model.HostDto;
+import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.MigrationOptions;
+import de.terrestris.shogun.migrator.model.Theme;
+import de.terrestris.shogun.migrator.snapshot.SnapshotWriter;
+import de.terrestris.shogun.migrator.spi.ShogunMigrator;
+import de.terrestris.shogun.migrator.util.ApplicationTemplate;
+import de.terrestris.shogun.migrator.util.CheckpointJournal;
+import de.terrestris.shogun.migrator.util.Deduplicator;
+import de.terrestris.shogun.migrator.util.Metrics;
+import de.terrestris.shogun.migrator.util.MigrationException;
+import de.terrestris.shogun.migrator.util.TargetIndex;
+import de.terrestris.shogun.migrator.util.WorkerPool;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static de.terrestris.shogun.migrator.util.ApiUtil.*;
+
+/**
+ * The parts shared by the migrators to a SHOGun boot target: reading the source, running the tasks on worker pools
+ * with the permission requests in a separate stage, matching the payloads against the target index and recording the
+ * migrated entities in the journal. Subclasses only build the payloads.
+ */
+@Log4j2
+public abstract class AbstractShogunMigrator implements ShogunMigrator {
+
+  /**
+   * Migrates a single source layer.
+   */
+  @FunctionalInterface
+  protected interface LayerMigration {
+
+    /**
+     * @param layer       the source layer
+     * @param migratedId  the id of the layer migrated before, or null
+     * @param permissions the pool to queue new layers to be made public on, or null
+     * @return the id of the target layer, or null if the layer could not be migrated
+     */
+    Integer migrate(JsonNode layer, Integer migratedId, WorkerPool permissions) throws Exception;
+
+  }
+
+  /**
+   * Builds the payload of a single source application.
+   */
+  @FunctionalInterface
+  protected interface ApplicationMigration {
+
+    /**
+     * @param application the source application
+     * @return the SHOGun boot application
+     */
+    ObjectNode migrate(JsonNode application) throws Exception;
+
+  }
+
+  protected HostDto source;
+
+  protected HostDto target;
+
+  protected MigrationOptions options;
+
+  @Override
+  public void initialize(HostDto source, HostDto target) {
+    initialize(source, target, new MigrationOptions());
+  }
+
+  @Override
+  public void initialize(HostDto source, HostDto target, MigrationOptions options) {
+    this.source = source;
+    this.target = target;
+    this.options = options;
+  }
+
+  /**
+   * Read the source layers.
+   *
+   * @param consumer the consumer to pass each layer to
+   */
+  protected abstract void readLayers(Consumer<JsonNode> consumer) throws IOException, GeneralSecurityException;
+
+  /**
+   * Read the source applications.
+   *
+   * @param consumer the consumer to pass each application to
+   */
+  protected abstract void readApplications(Consumer<JsonNode> consumer) throws IOException, GeneralSecurityException;
+
+  @Override
+  public Instant sourceTime() {
+    try {
+      return fetchTime(source);
+    } catch (IOException | GeneralSecurityException e) {
+      log.warn("Unable to fetch the time of the source: {}", e.getMessage());
+      log.trace("Stack trace:", e);
+      throw new MigrationException(e);
+    }
+  }
+
+  @Override
+  public boolean supportsExport() {
+    return true;
+  }
+
+  @Override
+  public void export(SnapshotWriter writer) {
+    try {
+      readLayers(writer.records(SnapshotWriter.LAYER));
+      readApplications(writer.records(SnapshotWriter.APPLICATION));
+    } catch (Exception e) {
+      log.warn("Unable to export source: {}", e.getMessage());
+      log.trace("Stack trace:", e);
+      throw new MigrationException(e);
+    }
+  }
+
+  /**
+   * Migrate all layers that need to be migrated according to the journal, recording them in the journal. With
+   * makePublic, new layers are made public by a separate stage of workers while the next layers are being saved.
+   *
+   * @param makePublic whether to make new layers public
+   * @param migration  migrates a single layer
+   * @return the mapping of old to new layer ids
+   */
+  protected Map<Integer, Integer> migrateLayers(boolean makePublic, LayerMigration migration) {
+    try {
+      CheckpointJournal journal = options.getJournal();
+      Map<Integer, Integer> layerIdMap = new ConcurrentHashMap<>(journal == null ? Map.of() : journal.getLayers());
+      // declared first, so it's closed last and still accepts layers while the layer pool drains
+      try (WorkerPool permissions = makePublic ?
+        WorkerPool.queued("layer permission", options.getPermissionParallelism()) : null;
+           WorkerPool pool = new WorkerPool("layer", options.getParallelism())) {
+        readLayers(layer -> {
+          int id = layer.get("id").intValue();
+          Integer migratedId = layerIdMap.get(id);
+          if (journal != null && !journal.needsMigration(migratedId, layer)) {
+            log.debug("Skipping already migrated layer {}.", id);
+            Metrics.increment(Metrics.ENTITIES, "entity", "layer", "action", "skipped");
+            return;
+          }
+          pool.submit(layer.get("name").asText(), () -> {
+            Integer newId = migration.migrate(layer, migratedId, permissions);
+            if (newId == null) {
+              return;
+            }
+            layerIdMap.put(id, newId);
+            if (journal != null) {
+              journal.recordLayer(id, newId);
+            }
+          });
+        });
+        int failed = pool.await().size();
+        int notPublic = permissions == null ? 0 : permissions.await().size();
+        if (notPublic > 0) {
+          log.warn("Some layers could not be made public, see above.");
+        }
+        options.getFailures().addAndGet(failed + notPublic);
+        if (failed + notPublic > 0 && journal != null) {
+          journal.markIncomplete();
+        }
+      }
+      return layerIdMap;
+    } catch (Exception e) {
+      log.warn("Unable to migrate layers: {}", e.getMessage());
+      log.trace("Stack trace:", e);
+      throw new MigrationException(e);
+    }
+  }
+
+  /**
+   * Migrate all applications that need to be migrated according to the journal, recording them in the journal.
+   *
+   * @param migration builds the payload of a single application
+   */
+  protected void migrateApplications(ApplicationMigration migration) {
+    try {
+      CheckpointJournal journal = options.getJournal();
+      try (WorkerPool pool = new WorkerPool("application", options.getApplicationParallelism())) {
+        readApplications(app -> {
+          int id = app.get("id").intValue();
+          Integer migratedId = journal == null ? null : journal.getApplication(id);
+          if (journal != null && !journal.needsMigration(migratedId, app)) {
+            log.debug("Skipping already migrated application {}.", id);
+            Metrics.increment(Metrics.ENTITIES, "entity", "application", "action", "skipped");
+            return;
+          }
+          pool.submit(app.get("name").asText(), () -> {
+            log.info("Migrating application...");
+            long start = System.nanoTime();
+            ObjectNode payload = migration.migrate(app);
+            Metrics.observe(Metrics.TRANSFORMS, start, "step", "application");
+            int newId = upsertApplication(payload, migratedId);
+            if (journal != null) {
+              journal.recordApplication(id, newId);
+            }
+          });
+        });
+        int failed = pool.await().size();
+        options.getFailures().addAndGet(failed);
+        if (failed > 0 && journal != null) {
+          journal.markIncomplete();
+        }
+      }
+    } catch (Exception e) {
+      log.warn("Unable to migrate applications: {}", e.getMessage());
+      log.trace("Stack trace:", e);
+      throw new MigrationException(e);
+    }
+  }
+
+  /**
+   * Returns the application template of the migration options, or one for the given legal info, theme and tool config.
+   *
+   * @param legal          the legal info to set, or null
+   * @param theme          the theme to set, or null
+   * @param toolConfigFile the tool config file to use, or null
+   * @return the template
+   */
+  protected ApplicationTemplate applicationTemplate(Legal legal, Theme theme, String toolConfigFile) {
+    return options.getApplicationTemplate() == null ? ApplicationTemplate.of(legal, theme, toolConfigFile) :
+      options.getApplicationTemplate();
+  }
+
+  /**
+   * Save a layer payload unless an equal layer has been saved already by this run or exists in the target. New layers
+   * are queued to be made public.
+   *
+   * @param payload     the layer
+   * @param migratedId  the id of the layer migrated before, or null
+   * @param permissions the permission pool, or null
+   * @return the id of the target layer
+   */
+  protected int upsertLayer(ObjectNode payload, Integer migratedId, WorkerPool permissions) throws Exception {
+    Deduplicator deduplicator = options.getLayerDeduplicator();
+    return deduplicator == null ? saveIndexedLayer(payload, migratedId, permissions) :
+      deduplicator.save(payload, () -> saveIndexedLayer(payload, migratedId, permissions));
+  }
+
+  private int saveIndexedLayer(ObjectNode payload, Integer migratedId, WorkerPool permissions)
+    throws IOException, GeneralSecurityException {
+    TargetIndex index = options.getTargetIndex();
+    // the existing layer has been post processed as well
+    postprocessLayer(payload);
+    TargetIndex.Entry existing = index == null ? null :
+      migratedId == null ? index.findLayer(payload) : index.getLayer(migratedId);
+    Integer targetId = existing == null ? migratedId : Integer.valueOf(existing.id());
+    if (existing != null && existing.matches(payload)) {
+      log.info("Layer {} is unchanged.", targetId);
+      Metrics.increment(Metrics.ENTITIES, "entity", "layer", "action", "unchanged");
+      return targetId;
+    }
+    int newId = savePostprocessedLayer(payload, target, targetId);
+    Metrics.increment(Metrics.ENTITIES, "entity", "layer", "action", targetId == null ? "created" : "updated");
+    if (permissions != null && targetId == null) {
+      makePublic(permissions, payload.path("name").asText(), newId);
+    }
+    return newId;
+  }
+
+  private int upsertApplication(ObjectNode payload, Integer migratedId) throws IOException {
+    TargetIndex index = options.getTargetIndex();
+    if (index == null) {
+      int newId = saveApplication(payload, target, migratedId);
+      Metrics.increment(Metrics.ENTITIES, "entity", "application", "action", migratedId == null ? "created" : "updated");
+      return newId;
+    }
+    // the existing application has been post processed as well
+    postprocessApplication(payload);
+    TargetIndex.Entry existing = migratedId == null ? index.findApplication(payload) :
+      index.getApplication(migratedId);
+    Integer targetId = existing == null ? migratedId : Integer.valueOf(existing.id());
+    if (existing != null && existing.matches(payload)) {
+      log.info("Application {} is unchanged.", targetId);
+      Metrics.increment(Metrics.ENTITIES, "entity", "application", "action", "unchanged");
+      return targetId;
+    }
+    int newId = savePostprocessedApplication(payload, target, targetId);
+    Metrics.increment(Metrics.ENTITIES, "entity", "application", "action", targetId == null ? "created" : "updated");
+    return newId;
+  }
+
+  /**
+   * Queue a new layer to be made public while the next layers are being saved. The layer is only recorded in the
+   * journal once it has been made public, so a resumed run migrates it again if that fails.
+   *
+   * @param permissions the permission pool
+   * @param name        the layer name used for logging
+   * @param id          the id of the new layer
+   */
+  protected void makePublic(WorkerPool permissions, String name, int id) {
+    CheckpointJournal journal = options.getJournal();
+    if (journal != null) {
+      journal.holdLayer(id);
+    }
+    permissions.submit(String.format("%s (%s)", name, id), () -> {
+      makeLayerPublic(target, id);
+      if (journal != null) {
+        journal.releaseLayer(id);
+      }
+    });
+  }
+
+}
@@ -4,31 +4,30 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import de.terrestris.shogun.migrator.model.HostDto;
 import de.terrestris.shogun.migrator.model.Legal;
 import de.terrestris.shogun.migrator.model.Theme;
 import de.terrestris.shogun.migrator.spi.ShogunMigrator;
-import de.terrestris.shogun.migrator.util.MigrationException;
+import de.terrestris.shogun.migrator.util.ApplicationTemplate;
+import de.terrestris.shogun.migrator.util.DryRunReport;
 import lombok.extern.log4j.Log4j2;
 import org.kohsuke.MetaInfServices;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static de.terrestris.shogun.migrator.util.ApiUtil.*;
 
 @Log4j2
-@MetaInfServices
-public class BootMigrator implements ShogunMigrator {
+@MetaInfServices(ShogunMigrator.class)
+public class BootMigrator extends AbstractShogunMigrator {
 
   public static final String LAYER_ID = "layerId";
 
   public static final String BACKGROUND_LAYERS = "backgroundLayers";
 
-  private HostDto source;
-
-  private HostDto target;
-
   private static void migrateLayerTree(ObjectNode node, Map<Integer, Integer> idMap) {
     if (node.has(LAYER_ID)) {
       node.put(LAYER_ID, idMap.get(node.get(LAYER_ID).intValue()));
@@ -40,7 +39,42 @@ public class BootMigrator implements ShogunMigrator {
     }
   }
 
+  private static void forEachLayerId(JsonNode node, IntConsumer consumer) {
+    if (node.has(LAYER_ID)) {
+      consumer.accept(node.get(LAYER_ID).intValue());
+    }
+    if (node.has("children")) {
+      for (JsonNode jsonNode : node.get("children")) {
+        forEachLayerId(jsonNode, consumer);
+      }
+    }
+  }
+
   public static byte[] migrateApplication(ObjectNode node, Map<Integer, Integer> idMap) throws IOException {
+    return new ObjectMapper().writeValueAsBytes(migrateApplicationNode(node, idMap));
+  }
+
+  /**
+   * Migrate a SHOGun boot application in place, keeping its legal info, theme and tool config.
+   *
+   * @param node  the application
+   * @param idMap the mapping of old to new layer ids
+   * @return the node
+   */
+  public static ObjectNode migrateApplicationNode(ObjectNode node, Map<Integer, Integer> idMap) {
+    return migrateApplicationNode(node, idMap, ApplicationTemplate.NONE);
+  }
+
+  /**
+   * Migrate a SHOGun boot application in place, without serializing it.
+   *
+   * @param node     the application
+   * @param idMap    the mapping of old to new layer ids
+   * @param template the legal info, theme and tool config to set
+   * @return the node
+   */
+  public static ObjectNode migrateApplicationNode(ObjectNode node, Map<Integer, Integer> idMap,
+                                                  ApplicationTemplate template) {
     ObjectMapper mapper = new ObjectMapper();
     node.remove("id");
     log.info("Migrating application {}", node.get("name").asText());
@@ -56,59 +90,45 @@ public class BootMigrator implements ShogunMigrator {
     JsonNode layerTree = node.get("layerTree");
     migrateLayerTree((ObjectNode) layerTree, idMap);
 
-    return mapper.writeValueAsBytes(node);
+    return template.apply(node);
+  }
+
+  @Override
+  protected void readLayers(Consumer<JsonNode> consumer) throws IOException, GeneralSecurityException {
+    stream(source, "layers", true, consumer);
   }
 
   @Override
-  public void initialize(HostDto source, HostDto target) {
-    this.source = source;
-    this.target = target;
+  protected void readApplications(Consumer<JsonNode> consumer) throws IOException, GeneralSecurityException {
+    stream(source, "applications", true, consumer);
   }
 
   @Override
   public Map<Integer, Integer> migrateLayers(boolean makePublic, String replaceLayerUrls) {
-    ObjectMapper mapper = new ObjectMapper();
-    try {
-      JsonNode node = fetch(source, "layers", true);
-      Map<Integer, Integer> layerIdMap = new HashMap<>();
-      for (JsonNode layer : node) {
-        int id = layer.get("id").intValue();
-        log.info("Migrating layer {}...", layer.get("name"));
-        ObjectNode on = (ObjectNode) layer;
-        on.remove("id");
-        byte[] bs = mapper.writeValueAsBytes(on);
-        if (bs == null) {
-          log.error("Unable to serialize layer {}!", layer.get("name"));
-          continue;
-        }
-        int newId = saveLayer(bs, target);
-        if (makePublic) {
-          makeLayerPublic(target, newId);
-        }
-        layerIdMap.put(id, newId);
-      }
-      return layerIdMap;
-    } catch (Exception e) {
-      log.warn("Unable to migrate layers: {}", e.getMessage());
-      log.trace("Stack trace:", e);
-      throw new MigrationException(e);
-    }
+    return migrateLayers(makePublic, (layer, migratedId, permissions) -> {
+      log.info("Migrating layer {}...", layer.get("name"));
+      ObjectNode on = (ObjectNode) layer;
+      on.remove("id");
+      return upsertLayer(on, migratedId, permissions);
+    });
   }
 
   @Override
   public void migrateApplications(Map<Integer, Integer> idMap, Legal legal, Theme theme, String toolConfigFile) {
-    try {
-      JsonNode node = fetch(source, "applications", true);
-      for (JsonNode app : node) {
-        log.info("Migrating application...");
-        byte[] bs = migrateApplication((ObjectNode) app, idMap);
-        saveApplication(bs, target);
+    ApplicationTemplate template = applicationTemplate(legal, theme, toolConfigFile);
+    migrateApplications(app -> {
+      DryRunReport report = target.getDryRun();
+      if (report != null) {
+        IntConsumer check = layerId -> {
+          if (!idMap.containsKey(layerId)) {
+            report.recordDanglingLayerId(layerId);
+          }
+        };
+        forEachLayerId(app.get("layerTree"), check);
+        app.path("clientConfig").path(BACKGROUND_LAYERS).forEach(layerId -> check.accept(layerId.asInt()));
       }
-    } catch (Exception e) {
-      log.warn("Unable to migrate applications: {}", e.getMessage());
-      log.trace("Stack trace:", e);
-      throw new MigrationException(e);
-    }
+      return migrateApplicationNode((ObjectNode) app, idMap, template);
+    });
   }
 
   @Override
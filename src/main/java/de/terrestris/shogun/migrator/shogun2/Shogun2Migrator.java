@@ -1,43 +1,68 @@
 package de.terrestris.shogun.migrator.shogun2;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import de.terrestris.shogun.migrator.model.HostDto;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import de.terrestris.shogun.migrator.model.Legal;
 import de.terrestris.shogun.migrator.model.Theme;
 import de.terrestris.shogun.migrator.spi.ShogunMigrator;
-import de.terrestris.shogun.migrator.util.MigrationException;
+import de.terrestris.shogun.migrator.util.ApplicationTemplate;
+import de.terrestris.shogun.migrator.util.DryRunReport;
+import de.terrestris.shogun.migrator.util.Metrics;
+import de.terrestris.shogun.migrator.util.UrlRewriter;
 import lombok.extern.log4j.Log4j2;
-import org.geotools.api.geometry.Position;
 import org.geotools.api.referencing.FactoryException;
 import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
 import org.geotools.api.referencing.operation.MathTransform;
 import org.geotools.api.referencing.operation.TransformException;
-import org.geotools.geometry.Position2D;
 import org.geotools.referencing.CRS;
 import org.kohsuke.MetaInfServices;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static de.terrestris.shogun.migrator.util.ApiUtil.*;
 
 @Log4j2
-@MetaInfServices
-public class Shogun2Migrator implements ShogunMigrator {
+@MetaInfServices(ShogunMigrator.class)
+public class Shogun2Migrator extends AbstractShogunMigrator {
 
   public static final String CHILDREN = "children";
   public static final String RESOLUTIONS = "resolutions";
   public static final String SEARCHABLE = "searchable";
-  public static final String DOUBLE_COLON = "::";
-  public static final String COMMA = ",";
-  private HostDto source;
 
-  private HostDto target;
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final Map<String, MathTransform> TRANSFORMS = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the (cached) transformation from the given projection to EPSG:4326.
+   *
+   * @param projection the source projection, e.g. 'EPSG:3857'
+   * @return the transformation
+   */
+  private static MathTransform getTransform(String projection) throws FactoryException {
+    MathTransform transform = TRANSFORMS.get(projection);
+    if (transform == null) {
+      CoordinateReferenceSystem targetCrs = CRS.decode("EPSG:4326");
+      CoordinateReferenceSystem sourceCrs = CRS.decode(projection);
+      transform = CRS.findMathTransform(sourceCrs, targetCrs);
+      MathTransform existing = TRANSFORMS.putIfAbsent(projection, transform);
+      if (existing != null) {
+        transform = existing;
+      }
+    }
+    return transform;
+  }
 
   private static JsonNode findMapModule(JsonNode node) {
     if (node == null) {
@@ -57,19 +82,30 @@ public class Shogun2Migrator implements ShogunMigrator {
     return null;
   }
 
+  private static int layerId(JsonNode layerNode) {
+    if (layerNode.isObject()) {
+      return layerNode.get("id").intValue();
+    }
+    return layerNode.intValue();
+  }
+
+  private static void forEachLayerId(JsonNode node, IntConsumer consumer) {
+    if (node.has("layer")) {
+      consumer.accept(layerId(node.get("layer")));
+    }
+    if (node.has(CHILDREN)) {
+      for (JsonNode child : node.get(CHILDREN)) {
+        forEachLayerId(child, consumer);
+      }
+    }
+  }
+
   private static JsonNode migrateLayerTree(JsonNode node, ObjectMapper mapper, Map<Integer, Integer> idMap) {
     ObjectNode folder = mapper.createObjectNode();
     folder.set("checked", node.get("checked"));
     folder.set("title", node.get("text"));
     if (node.has("layer")) {
-      JsonNode layerNode = node.get("layer");
-      int id;
-      if (layerNode.isObject()) {
-        id = layerNode.get("id").intValue();
-      } else {
-        id = layerNode.intValue();
-      }
-      folder.put("layerId", idMap.get(id));
+      folder.put("layerId", idMap.get(layerId(node.get("layer"))));
     }
     if (node.has(CHILDREN)) {
       ArrayNode children = mapper.createArrayNode();
@@ -82,6 +118,34 @@ public class Shogun2Migrator implements ShogunMigrator {
   }
 
   public static byte[] migrateApplication(JsonNode node, Map<Integer, Integer> idMap, Legal legal, Theme theme, String toolConfigFile) throws IOException, FactoryException, TransformException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    new ObjectMapper().writeValue(bout, migrateApplicationNode(node, idMap, legal, theme, toolConfigFile));
+    return bout.toByteArray();
+  }
+
+  /**
+   * Migrate a shogun2 application to the tree of a SHOGun boot application, without serializing it.
+   *
+   * @param node           the shogun2 application
+   * @param idMap          the mapping of old to new layer ids
+   * @param legal          the legal info to set, or null
+   * @param theme          the theme to set, or null
+   * @param toolConfigFile the tool config file to use, or null
+   * @return the SHOGun boot application
+   */
+  public static ObjectNode migrateApplicationNode(JsonNode node, Map<Integer, Integer> idMap, Legal legal, Theme theme, String toolConfigFile) throws IOException, FactoryException, TransformException {
+    return migrateApplicationNode(node, idMap, ApplicationTemplate.of(legal, theme, toolConfigFile));
+  }
+
+  /**
+   * Migrate a shogun2 application to the tree of a SHOGun boot application, without serializing it.
+   *
+   * @param node     the shogun2 application
+   * @param idMap    the mapping of old to new layer ids
+   * @param template the legal info, theme and tool config to set
+   * @return the SHOGun boot application
+   */
+  public static ObjectNode migrateApplicationNode(JsonNode node, Map<Integer, Integer> idMap, ApplicationTemplate template) throws FactoryException, TransformException {
     ObjectMapper mapper = new ObjectMapper();
     ObjectNode root = mapper.createObjectNode();
     ObjectNode clientConfig = mapper.createObjectNode();
@@ -92,47 +156,37 @@ public class Shogun2Migrator implements ShogunMigrator {
       JsonNode mapConfig = mapNode.get("mapConfig");
       ObjectNode mapView = mapper.createObjectNode();
       ArrayNode center = mapper.createArrayNode();
-      JsonNode oldCenter = mapConfig.get("center");
-      if (oldCenter.isArray()) {
-        center.add(oldCenter.get(0).asDouble());
-        center.add(oldCenter.get(1).asDouble());
-      } else {
-        center.add(oldCenter.get("x"));
-        center.add(oldCenter.get("y"));
-      }
       mapView.set("center", center);
-      ArrayNode extent = mapper.createArrayNode();
+      JsonNode oldCenter = mapConfig.get("center");
       JsonNode oldExtent = mapConfig.get("extent");
 
       String oldProjection = mapConfig.get("projection").asText();
-      mapView.put("projection", oldProjection.startsWith("EPSG:") ? oldProjection : ("EPSG:" + oldProjection));
-
-      CoordinateReferenceSystem targetCrs = CRS.decode("EPSG:4326");
-      CoordinateReferenceSystem sourceCrs = CRS.decode(mapView.get("projection").asText());
-      MathTransform transform = CRS.findMathTransform(sourceCrs, targetCrs);
-
-      final double lowerLeftX = oldExtent.get("lowerLeft").get("x").asDouble();
-      final double lowerLeftY = oldExtent.get("lowerLeft").get("y").asDouble();
-      Position lowerLeftPos = new Position2D(lowerLeftX, lowerLeftY);
-      Position transformedLowerLeftPos = transform.transform(lowerLeftPos, null);
-      extent.add(transformedLowerLeftPos.getOrdinate(1));
-      extent.add(transformedLowerLeftPos.getOrdinate(0));
-
-      final double upperRightX = oldExtent.get("upperRight").get("x").asDouble();
-      final double upperRightY = oldExtent.get("upperRight").get("y").asDouble();
-      Position upperRightPos = new Position2D(upperRightX, upperRightY);
-      Position transformedUpperRightPos = transform.transform(upperRightPos, null);
-      extent.add(transformedUpperRightPos.getOrdinate(1));
-      extent.add(transformedUpperRightPos.getOrdinate(0));
+      String projection = oldProjection.startsWith("EPSG:") ? oldProjection : ("EPSG:" + oldProjection);
+      mapView.put("projection", projection);
+
+      // lower left, upper right and center, transformed in one go
+      double[] points = {
+        oldExtent.get("lowerLeft").get("x").asDouble(),
+        oldExtent.get("lowerLeft").get("y").asDouble(),
+        oldExtent.get("upperRight").get("x").asDouble(),
+        oldExtent.get("upperRight").get("y").asDouble(),
+        oldCenter.isArray() ? oldCenter.get(0).asDouble() : oldCenter.get("x").asDouble(),
+        oldCenter.isArray() ? oldCenter.get(1).asDouble() : oldCenter.get("y").asDouble()
+      };
+      long start = System.nanoTime();
+      getTransform(projection).transform(points, 0, points, 0, 3);
+      Metrics.observe(Metrics.TRANSFORMS, start, "step", "crs");
 
+      ArrayNode extent = mapper.createArrayNode();
+      extent.add(points[1]);
+      extent.add(points[0]);
+      extent.add(points[3]);
+      extent.add(points[2]);
       mapView.set("extent", extent);
       mapView.put("zoom", mapConfig.get("zoom").asInt());
 
-      Position centerPos = new Position2D(center.get(0).asDouble(), center.get(1).asDouble());
-      Position transformedCenterPos = transform.transform(centerPos, null);
-      center.removeAll();
-      center.add(transformedCenterPos.getOrdinate(1));
-      center.add(transformedCenterPos.getOrdinate(0));
+      center.add(points[5]);
+      center.add(points[4]);
 
       JsonNode resolutions = mapConfig.get(RESOLUTIONS);
       ArrayNode newResolutions = mapper.createArrayNode();
@@ -142,58 +196,12 @@ public class Shogun2Migrator implements ShogunMigrator {
       mapView.set(RESOLUTIONS, newResolutions);
       clientConfig.set("mapView", mapView);
     }
-    // set legal info for all apps
-    if (legal != null) {
-      final String contact = legal.getContact();
-      final String imprint = legal.getImprint();
-      final String privacy = legal.getPrivacy();
-      if (contact != null || imprint != null || privacy != null) {
-        ObjectNode legalNode = mapper.createObjectNode();
-
-        addToNode(contact, "contact", legalNode);
-        addToNode(imprint, "imprint", legalNode);
-        addToNode(privacy, "privacy", legalNode);
-
-        clientConfig.set("legal", legalNode);
-      }
-    }
-    // set theme info for all apps
-    if (theme != null) {
-      final String primaryColor = theme.getPrimaryColor();
-      final String secondaryColor = theme.getSecondaryColor();
-      final String complementaryColor = theme.getComplementaryColor();
-      final String logoPath = theme.getLogoPath();
-      final String faviconPath = theme.getFaviconPath();
-      if (primaryColor != null || secondaryColor != null || complementaryColor != null || logoPath != null || faviconPath != null) {
-        ObjectNode themeNode = mapper.createObjectNode();
-
-        addToNode(primaryColor, "primaryColor", themeNode);
-        addToNode(secondaryColor, "secondaryColor", themeNode);
-        addToNode(complementaryColor, "complementaryColor", themeNode);
-        addToNode(logoPath, "logoPath", themeNode);
-        addToNode(faviconPath, "faviconPath", themeNode);
-
-        clientConfig.set("theme", themeNode);
-      }
-    }
-
-    // read tool config from file
-    if(toolConfigFile != null && !toolConfigFile.isEmpty()) {
-      root.set("toolConfig", mapper.readTree(new File(toolConfigFile)));
-    }
-
+    // the tool config precedes the layer tree
+    template.applyToolConfig(root);
     JsonNode layerTree = migrateLayerTree(node.get("layerTree"), mapper, idMap);
     root.set("layerTree", layerTree);
     root.set("clientConfig", clientConfig);
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    mapper.writeValue(bout, root);
-    return bout.toByteArray();
-  }
-
-  private static void addToNode(String obj, String fieldName, ObjectNode themeNode) {
-    if (obj != null && !obj.isEmpty()) {
-      themeNode.put(fieldName, obj);
-    }
+    return template.applyClientConfig(root);
   }
 
   private static String mapType(String type) {
@@ -212,195 +220,212 @@ public class Shogun2Migrator implements ShogunMigrator {
       };
   }
 
-  private static void migrateLayerClientConfig(JsonNode node, ObjectNode config) {
-    ObjectMapper mapper = new ObjectMapper();
+  private static void writeLayerClientConfig(JsonNode node, JsonGenerator gen) throws IOException {
     JsonNode appearance = node.get("appearance");
-    config.put("minResolution", appearance.get("minResolution").textValue());
-    config.put("maxResolution", appearance.get("maxResolution").textValue());
-    config.put("hoverable", appearance.get("hoverable").booleanValue());
+    gen.writeStringField("minResolution", appearance.get("minResolution").textValue());
+    gen.writeStringField("maxResolution", appearance.get("maxResolution").textValue());
+    gen.writeBooleanField("hoverable", appearance.get("hoverable").booleanValue());
     JsonNode propertyConfig = node.get("columnAliasesDe");
     if (propertyConfig != null && !propertyConfig.isEmpty()) {
-      ArrayNode formConfig = mapper.createArrayNode();
-      config.set("featureInfoFormConfig", formConfig);
-      ObjectNode properties = mapper.createObjectNode();
-      formConfig.add(properties);
-      properties.put("title", node.get("name").asText());
-      ArrayNode list = mapper.createArrayNode();
-      properties.set("children", list);
+      gen.writeArrayFieldStart("featureInfoFormConfig");
+      gen.writeStartObject();
+      gen.writeStringField("title", node.get("name").asText());
+      gen.writeArrayFieldStart(CHILDREN);
 
       List<String> propertyList = new ArrayList<>();
       propertyConfig.fieldNames().forEachRemaining(propertyList::add);
       Collections.reverse(propertyList);
 
-      propertyList.forEach(name -> {
-        ObjectNode property = mapper.createObjectNode();
-        property.put("propertyName", name);
-        property.put("displayName", propertyConfig.get(name).asText());
-        list.add(property);
-      });
+      for (String name : propertyList) {
+        gen.writeStartObject();
+        gen.writeStringField("propertyName", name);
+        gen.writeStringField("displayName", propertyConfig.get(name).asText());
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+      gen.writeEndArray();
     }
     JsonNode searchable = node.get(SEARCHABLE);
     if (searchable != null && searchable.booleanValue()) {
-      config.put(SEARCHABLE, searchable.booleanValue());
+      gen.writeBooleanField(SEARCHABLE, searchable.booleanValue());
       JsonNode oldConfig = node.get("searchConfig");
-      ObjectNode searchConfig = mapper.createObjectNode();
-      config.set("searchConfig", searchConfig);
-      searchConfig.put("displayTemplate", oldConfig.get("displayTemplate").textValue());
+      gen.writeObjectFieldStart("searchConfig");
+      gen.writeStringField("displayTemplate", oldConfig.get("displayTemplate").textValue());
       JsonNode icon = oldConfig.get("icon");
       if (icon != null) {
-        searchConfig.put("icon", icon.textValue());
+        gen.writeStringField("icon", icon.textValue());
+      }
+      gen.writeArrayFieldStart("attributes");
+      for (JsonNode attribute : oldConfig.get("attributes")) {
+        gen.writeString(attribute.textValue());
       }
-      ArrayNode attributes = mapper.createArrayNode();
-      oldConfig.get("attributes").forEach(attribute -> attributes.add(attribute.textValue()));
-      searchConfig.set("attributes", attributes);
+      gen.writeEndArray();
+      gen.writeEndObject();
     } else {
-      config.put(SEARCHABLE, false);
+      gen.writeBooleanField(SEARCHABLE, false);
     }
   }
 
-  private static void migrateLayerSourceConfig(JsonNode node, ObjectNode config, String replaceLayerUrls) {
-    config.put("attribution", node.get("appearance").get("attribution").textValue());
+  private static void writeLayerSourceConfig(JsonNode node, JsonGenerator gen, UrlRewriter rewriter) throws IOException {
+    gen.writeStringField("attribution", node.get("appearance").get("attribution").textValue());
     JsonNode legendUrl = node.get("legendUrl");
     if (legendUrl != null) {
-      config.put("legendUrl", legendUrl.asText());
+      gen.writeStringField("legendUrl", rewriter.rewrite(legendUrl.asText()));
     }
-    ObjectMapper mapper = new ObjectMapper();
     JsonNode oldSource = node.get("source");
-    String url = oldSource.get("url").textValue();
-
-    if (replaceLayerUrls != null && replaceLayerUrls.contains(DOUBLE_COLON)) {
-      String[] replacements = replaceLayerUrls.split(COMMA);
-      for (String replacement : replacements) {
-        if (replacement.contains(DOUBLE_COLON)) {
-          String[] replacementSplit =  replacement.split(DOUBLE_COLON);
-          if (replacementSplit[0].equals(url)) {
-            url = replacementSplit[1];
-            break;
-          }
-        }
-      }
-    }
+    String url = rewriter.rewrite(oldSource.get("url").textValue());
 
     if (url.startsWith("http")) {
-      config.put("url", url);
+      gen.writeStringField("url", url);
     } else {
-      config.put("url", "/geoserver/ows");
+      gen.writeStringField("url", "/geoserver/ows");
     }
     final JsonNode layerNames = oldSource.get("layerNames");
     if (layerNames != null) {
-      config.put("layerNames", layerNames.textValue());
+      gen.writeStringField("layerNames", layerNames.textValue());
     } else {
       // check whether we have a wmtsLayer config
       final JsonNode wmtsLayer = oldSource.get("wmtsLayer");
       if(wmtsLayer != null) {
-        config.put("layerNames", wmtsLayer.textValue());
+        gen.writeStringField("layerNames", wmtsLayer.textValue());
       } else {
-        config.put("layerNames", "");
+        gen.writeStringField("layerNames", "");
       }
 
     }
     JsonNode tileGrid = oldSource.get("tileGrid");
     if (tileGrid != null) {
-      config.put("tileSize", tileGrid.get("tileSize").intValue());
+      gen.writeNumberField("tileSize", tileGrid.get("tileSize").intValue());
       JsonNode oldOrigin = tileGrid.get("tileGridOrigin");
-      ArrayNode tileOrigin = mapper.createArrayNode();
-      tileOrigin.add(oldOrigin.get("x").doubleValue());
-      tileOrigin.add(oldOrigin.get("y").doubleValue());
-      config.set("tileOrigin", tileOrigin);
-      JsonNode oldResolutions = tileGrid.get("tileGridResolutions");
-      ArrayNode resolutions = mapper.createArrayNode();
-      oldResolutions.forEach(resolution -> resolutions.add(resolution.doubleValue()));
-      config.set(RESOLUTIONS, resolutions);
+      gen.writeArrayFieldStart("tileOrigin");
+      gen.writeNumber(oldOrigin.get("x").doubleValue());
+      gen.writeNumber(oldOrigin.get("y").doubleValue());
+      gen.writeEndArray();
+      gen.writeArrayFieldStart(RESOLUTIONS);
+      for (JsonNode resolution : tileGrid.get("tileGridResolutions")) {
+        gen.writeNumber(resolution.doubleValue());
+      }
+      gen.writeEndArray();
     }
   }
 
-  public static byte[] migrateLayer(JsonNode node, String replaceLayerUrl) throws IOException {
-    ObjectMapper mapper = new ObjectMapper();
-    ObjectNode root = mapper.createObjectNode();
-
-    JsonNode name = node.get("name");
-    root.put("name", name.textValue());
+  /**
+   * Determine the SHOGun boot type of a shogun2 layer.
+   *
+   * @param node the shogun2 layer
+   * @return the boot layer type or null, if the layer cannot be migrated
+   */
+  public static String layerType(JsonNode node) {
     JsonNode type = node.get("source").get("type");
     if (type == null) {
-      log.warn("Layer {} doesn't have a type set.", name);
+      log.warn("Layer {} doesn't have a type set.", node.get("name"));
       return null;
     }
-    String mappedType = mapType(type.textValue());
-    if (mappedType == null) {
-      return null;
-    }
-    root.put("type", mappedType);
+    return mapType(type.textValue());
+  }
 
-    ObjectNode clientConfig = mapper.createObjectNode();
-    ObjectNode sourceConfig = mapper.createObjectNode();
+  /**
+   * Write the SHOGun boot layer for a shogun2 layer in a single pass, without building an intermediate tree.
+   *
+   * @param node            the shogun2 layer
+   * @param type            the boot layer type as determined by {@link #layerType(JsonNode)}
+   * @param replaceLayerUrl the layer URL replacements
+   * @param gen             the generator to write to
+   */
+  public static void writeLayer(JsonNode node, String type, String replaceLayerUrl, JsonGenerator gen) throws IOException {
+    writeLayer(node, type, UrlRewriter.parse(replaceLayerUrl), gen);
+  }
 
-    migrateLayerClientConfig(node, clientConfig);
-    migrateLayerSourceConfig(node, sourceConfig, replaceLayerUrl);
+  private static void writeLayer(JsonNode node, String type, UrlRewriter rewriter, JsonGenerator gen) throws IOException {
+    gen.writeStartObject();
+    gen.writeStringField("name", node.get("name").textValue());
+    gen.writeStringField("type", type);
+    gen.writeObjectFieldStart("clientConfig");
+    writeLayerClientConfig(node, gen);
+    gen.writeEndObject();
+    gen.writeObjectFieldStart("sourceConfig");
+    writeLayerSourceConfig(node, gen, rewriter);
+    gen.writeEndObject();
+    gen.writeEndObject();
+  }
 
-    root.set("clientConfig", clientConfig);
-    root.set("sourceConfig", sourceConfig);
+  public static byte[] migrateLayer(JsonNode node, String replaceLayerUrl) throws IOException {
+    return migrateLayer(node, UrlRewriter.parse(replaceLayerUrl));
+  }
 
+  private static byte[] migrateLayer(JsonNode node, UrlRewriter rewriter) throws IOException {
+    String type = layerType(node);
+    if (type == null) {
+      return null;
+    }
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    mapper.writeValue(bout, root);
+    try (JsonGenerator gen = JSON_FACTORY.createGenerator(bout)) {
+      writeLayer(node, type, rewriter, gen);
+    }
     return bout.toByteArray();
   }
 
+  private static ObjectNode migrateLayerNode(JsonNode node, String type, UrlRewriter rewriter) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    TokenBuffer buffer = new TokenBuffer(mapper, false);
+    writeLayer(node, type, rewriter, buffer);
+    return (ObjectNode) mapper.readTree(buffer.asParser());
+  }
+
+  @Override
+  protected void readLayers(Consumer<JsonNode> consumer) throws IOException, GeneralSecurityException {
+    stream(source, "rest/projectlayers", false, consumer);
+  }
+
   @Override
-  public void initialize(HostDto source, HostDto target) {
-    this.source = source;
-    this.target = target;
+  protected void readApplications(Consumer<JsonNode> consumer) throws IOException, GeneralSecurityException {
+    stream(source, "rest/projectapps", false, consumer);
   }
 
   @Override
   public Map<Integer, Integer> migrateLayers(boolean makePublic, String replaceLayerUrls) {
-    try {
-      JsonNode node = fetch(source, "rest/projectlayers", false);
-      Map<Integer, Integer> layerIdMap = new HashMap<>();
-//      int i = 0;
-      for (JsonNode layer : node) {
-        log.info("Migrating layer...");
-        byte[] bs = migrateLayer(layer, replaceLayerUrls);
-        if (bs == null) {
-          continue;
+    UrlRewriter rewriter = options.getUrlRewriter() == null ? UrlRewriter.parse(replaceLayerUrls) :
+      options.getUrlRewriter();
+    return migrateLayers(makePublic, (layer, migratedId, permissions) -> {
+      log.info("Migrating layer...");
+      String type = layerType(layer);
+      if (type == null) {
+        if (target.getDryRun() != null) {
+          target.getDryRun().recordUnmappableType(layer.path("source").path("type").asText("none"));
         }
-        int newId = saveLayer(bs, target);
-        if (makePublic) {
-          makeLayerPublic(target, newId);
+        Metrics.increment(Metrics.ENTITIES, "entity", "layer", "action", "unmappable");
+        return null;
+      }
+      if (options.getTargetIndex() == null && options.getLayerDeduplicator() == null) {
+        int newId = saveLayer(gen -> writeLayer(layer, type, rewriter, gen), target, migratedId);
+        Metrics.increment(Metrics.ENTITIES, "entity", "layer", "action", migratedId == null ? "created" : "updated");
+        if (permissions != null && migratedId == null) {
+          makePublic(permissions, layer.get("name").asText(), newId);
         }
-        layerIdMap.put(layer.get("id").intValue(), newId);
-        // use these to create new test files
-//        new ObjectMapper().writeValue(new File("/tmp/layer" + ++i + ".json"), layer);
-//        OutputStream outputStream = Files.newOutputStream(new File("/tmp/layer" + ++i + ".json").toPath());
-//        copy(new ByteArrayInputStream(bs), outputStream);
-//        outputStream.close();
+        return newId;
       }
-      return layerIdMap;
-    } catch (Exception e) {
-      log.warn("Unable to migrate layers: {}", e.getMessage());
-      log.trace("Stack trace:", e);
-      throw new MigrationException(e);
-    }
+      long start = System.nanoTime();
+      ObjectNode payload = migrateLayerNode(layer, type, rewriter);
+      Metrics.observe(Metrics.TRANSFORMS, start, "step", "layer");
+      return upsertLayer(payload, migratedId, permissions);
+    });
   }
 
   @Override
   public void migrateApplications(Map<Integer, Integer> idMap, Legal legal, Theme theme, String toolConfigFile) {
-    try {
-      JsonNode node = fetch(source, "rest/projectapps", false);
-//      int i = 0;
-      for (JsonNode app : node) {
-        log.info("Migrating application...");
-        byte[] bs = migrateApplication(app, idMap, legal, theme, toolConfigFile);
-        saveApplication(bs, target);
-        // use these to create new test files
-//        OutputStream outputStream = Files.newOutputStream(new File("/tmp/" + ++i + ".json").toPath());
-//        copy(new ByteArrayInputStream(bs), outputStream);
-//        outputStream.close();
+    ApplicationTemplate template = applicationTemplate(legal, theme, toolConfigFile);
+    migrateApplications(app -> {
+      DryRunReport report = target.getDryRun();
+      if (report != null) {
+        forEachLayerId(app.get("layerTree"), layerId -> {
+          if (!idMap.containsKey(layerId)) {
+            report.recordDanglingLayerId(layerId);
+          }
+        });
       }
-    } catch (Exception e) {
-      log.warn("Unable to migrate applications: {}", e.getMessage());
-      log.trace("Stack trace:", e);
-      throw new MigrationException(e);
-    }
+      return migrateApplicationNode(app, idMap, template);
+    });
   }
 
   @Override
@@ -0,0 +1,124 @@
+package de.terrestris.shogun.migrator.snapshot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import de.terrestris.shogun.migrator.model.HostDto;
+import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.MigrationOptions;
+import de.terrestris.shogun.migrator.model.Theme;
+import de.terrestris.shogun.migrator.shogun2.BootMigrator;
+import de.terrestris.shogun.migrator.shogun2.Shogun2Migrator;
+import de.terrestris.shogun.migrator.spi.ShogunMigrator;
+import de.terrestris.shogun.migrator.util.MigrationException;
+import lombok.extern.log4j.Log4j2;
+import org.kohsuke.MetaInfServices;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static de.terrestris.shogun.migrator.snapshot.SnapshotWriter.APPLICATION;
+import static de.terrestris.shogun.migrator.snapshot.SnapshotWriter.LAYER;
+
+/**
+ * Migrates from a snapshot file exported with --export. The source host is the path to the snapshot file, the actual
+ * migration is done by the migrator for the type the snapshot was exported from.
+ */
+@Log4j2
+@MetaInfServices
+public class SnapshotMigrator implements ShogunMigrator {
+
+  private ShogunMigrator delegate;
+
+  private static ShogunMigrator createDelegate(SnapshotReader reader, String sourceType) {
+    return switch (sourceType) {
+      case "shogun2" -> new Shogun2Migrator() {
+        @Override
+        protected void readLayers(Consumer<JsonNode> consumer) throws IOException {
+          reader.forEach(LAYER, consumer);
+        }
+
+        @Override
+        protected void readApplications(Consumer<JsonNode> consumer) throws IOException {
+          reader.forEach(APPLICATION, consumer);
+        }
+
+        @Override
+        public Instant sourceTime() {
+          return readSourceTime(reader);
+        }
+      };
+      case "boot" -> new BootMigrator() {
+        @Override
+        protected void readLayers(Consumer<JsonNode> consumer) throws IOException {
+          reader.forEach(LAYER, consumer);
+        }
+
+        @Override
+        protected void readApplications(Consumer<JsonNode> consumer) throws IOException {
+          reader.forEach(APPLICATION, consumer);
+        }
+
+        @Override
+        public Instant sourceTime() {
+          return readSourceTime(reader);
+        }
+      };
+      default -> throw new MigrationException(String.format("Unsupported snapshot source type %s.", sourceType));
+    };
+  }
+
+  private static Instant readSourceTime(SnapshotReader reader) {
+    try {
+      Instant time = reader.readSourceTime();
+      if (time == null) {
+        log.warn("The snapshot does not record the time of its source.");
+      }
+      return time;
+    } catch (IOException e) {
+      throw new MigrationException(e);
+    }
+  }
+
+  @Override
+  public void initialize(HostDto source, HostDto target) {
+    initialize(source, target, new MigrationOptions());
+  }
+
+  @Override
+  public void initialize(HostDto source, HostDto target, MigrationOptions options) {
+    SnapshotReader reader = new SnapshotReader(Path.of(source.getHostname()));
+    try {
+      String sourceType = reader.readSourceType();
+      log.info("Migrating from {} snapshot {}.", sourceType, source.getHostname());
+      delegate = createDelegate(reader, sourceType);
+    } catch (IOException e) {
+      log.warn("Unable to read snapshot: {}", e.getMessage());
+      log.trace("Stack trace:", e);
+      throw new MigrationException(e);
+    }
+    delegate.initialize(source, target, options);
+  }
+
+  @Override
+  public Map<Integer, Integer> migrateLayers(boolean makePublic, String replaceLayerUrls) {
+    return delegate.migrateLayers(makePublic, replaceLayerUrls);
+  }
+
+  @Override
+  public void migrateApplications(Map<Integer, Integer> idMap, Legal legal, Theme theme, String toolConfigFile) {
+    delegate.migrateApplications(idMap, legal, theme, toolConfigFile);
+  }
+
+  @Override
+  public Instant sourceTime() {
+    return delegate.sourceTime();
+  }
+
+  @Override
+  public boolean handlesSourceType(String sourceType) {
+    return sourceType.equalsIgnoreCase("snapshot");
+  }
+
+}
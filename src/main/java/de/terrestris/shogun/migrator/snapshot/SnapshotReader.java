@@ -0,0 +1,126 @@
+package de.terrestris.shogun.migrator.snapshot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import static de.terrestris.shogun.migrator.snapshot.SnapshotWriter.HEADER;
+import static de.terrestris.shogun.migrator.snapshot.SnapshotWriter.isCompressed;
+
+/**
+ * Reads snapshots written by the {@link SnapshotWriter}. Uncompressed snapshots are memory mapped and the entities are
+ * parsed straight from the mapped file, compressed snapshots (and files too large to be mapped in one go) are streamed.
+ */
+public class SnapshotReader {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final Path file;
+
+  public SnapshotReader(Path file) {
+    this.file = file;
+  }
+
+  private DataInputStream openStream() throws IOException {
+    InputStream stream = Files.newInputStream(file);
+    if (isCompressed(file)) {
+      stream = new GZIPInputStream(stream, BUFFER_SIZE);
+    }
+    return new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+  }
+
+  private JsonNode readHeader() throws IOException {
+    try (DataInputStream in = openStream()) {
+      byte type = in.readByte();
+      byte[] bs = new byte[in.readInt()];
+      in.readFully(bs);
+      if (type != HEADER) {
+        throw new IOException(String.format("%s is not a snapshot file.", file));
+      }
+      return mapper.readTree(bs);
+    }
+  }
+
+  /**
+   * @return the type of the source the snapshot was exported from
+   */
+  public String readSourceType() throws IOException {
+    return readHeader().get("type").asText();
+  }
+
+  /**
+   * @return the time of the source when the export started, or null for snapshots that don't record it
+   */
+  public Instant readSourceTime() throws IOException {
+    JsonNode header = readHeader();
+    return header.hasNonNull("sourceTime") ? Instant.parse(header.get("sourceTime").asText()) : null;
+  }
+
+  /**
+   * Pass all entities of the given record type to the consumer.
+   *
+   * @param type     the record type
+   * @param consumer the consumer
+   * @return the number of entities
+   */
+  public int forEach(byte type, Consumer<JsonNode> consumer) throws IOException {
+    if (isCompressed(file) || Files.size(file) > Integer.MAX_VALUE) {
+      return forEachStreamed(type, consumer);
+    }
+    int count = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      while (buffer.hasRemaining()) {
+        byte recordType = buffer.get();
+        int length = buffer.getInt();
+        int position = buffer.position();
+        if (recordType == type) {
+          consumer.accept(mapper.readTree(new ByteBufferBackedInputStream(buffer.slice(position, length))));
+          ++count;
+        }
+        buffer.position(position + length);
+      }
+    }
+    return count;
+  }
+
+  private int forEachStreamed(byte type, Consumer<JsonNode> consumer) throws IOException {
+    int count = 0;
+    try (DataInputStream in = openStream()) {
+      while (true) {
+        byte recordType;
+        try {
+          recordType = in.readByte();
+        } catch (EOFException e) {
+          return count;
+        }
+        int length = in.readInt();
+        if (recordType == type) {
+          byte[] bs = new byte[length];
+          in.readFully(bs);
+          consumer.accept(mapper.readTree(bs));
+          ++count;
+        } else {
+          in.skipNBytes(length);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,115 @@
+package de.terrestris.shogun.migrator.snapshot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a snapshot of the raw source entities to a local file. The file consists of length prefixed records: one
+ * byte record type, a four byte big endian length and the UTF-8 JSON of the entity. The first record is a header
+ * containing the source type and the time of the source when the export started. If the file name ends with '.gz', the file is gzip compressed.
+ */
+@Log4j2
+public class SnapshotWriter implements Closeable {
+
+  public static final byte HEADER = 'H';
+
+  public static final byte LAYER = 'L';
+
+  public static final byte APPLICATION = 'A';
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final Path file;
+
+  private final DataOutputStream out;
+
+  private int count = 0;
+
+  /**
+   * Create a new snapshot file.
+   *
+   * @param file       the file to write to
+   * @param sourceType the type of the source the entities are read from, e.g. 'shogun2'
+   */
+  public SnapshotWriter(Path file, String sourceType) throws IOException {
+    this(file, sourceType, null);
+  }
+
+  /**
+   * Create a new snapshot file.
+   *
+   * @param file       the file to write to
+   * @param sourceType the type of the source the entities are read from, e.g. 'shogun2'
+   * @param sourceTime the time of the source before the export started, or null if it is unknown
+   */
+  public SnapshotWriter(Path file, String sourceType, Instant sourceTime) throws IOException {
+    this.file = file;
+    OutputStream stream = Files.newOutputStream(file);
+    if (isCompressed(file)) {
+      stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+    }
+    out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+    ObjectNode header = mapper.createObjectNode().put("type", sourceType);
+    if (sourceTime != null) {
+      header.put("sourceTime", sourceTime.toString());
+    }
+    write(HEADER, header);
+  }
+
+  static boolean isCompressed(Path file) {
+    return file.getFileName().toString().endsWith(".gz");
+  }
+
+  /**
+   * Append a record.
+   *
+   * @param type the record type
+   * @param node the entity
+   */
+  public synchronized void write(byte type, JsonNode node) throws IOException {
+    byte[] bs = mapper.writeValueAsBytes(node);
+    out.writeByte(type);
+    out.writeInt(bs.length);
+    out.write(bs);
+    ++count;
+  }
+
+  /**
+   * Returns a consumer appending records of the given type, to be used with the source readers of the migrators.
+   *
+   * @param type the record type
+   * @return the consumer
+   */
+  public Consumer<JsonNode> records(byte type) {
+    return node -> {
+      try {
+        write(type, node);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+    log.info("Wrote {} records to snapshot {}.", count, file);
+  }
+
+}
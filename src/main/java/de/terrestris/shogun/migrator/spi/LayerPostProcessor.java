@@ -2,8 +2,23 @@ package de.terrestris.shogun.migrator.spi;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+/**
+ * Modifies migrated layers before they are saved. The layer is passed as the tree built by the migrator and
+ * serialized once after all post processors ran. Post processors are shared by all migration threads, so they must be
+ * thread safe.
+ */
 public interface LayerPostProcessor {
 
+  /**
+   * @param config the migrated layer, an object node that can be modified in place
+   */
   void postprocess(JsonNode config);
 
+  /**
+   * @return the position of this post processor, lower values run first
+   */
+  default int order() {
+    return 0;
+  }
+
 }
@@ -2,8 +2,11 @@ package de.terrestris.shogun.migrator.spi;
 
 import de.terrestris.shogun.migrator.model.HostDto;
 import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.MigrationOptions;
 import de.terrestris.shogun.migrator.model.Theme;
+import de.terrestris.shogun.migrator.snapshot.SnapshotWriter;
 
+import java.time.Instant;
 import java.util.Map;
 
 public interface ShogunMigrator {
@@ -16,6 +19,18 @@ public interface ShogunMigrator {
    */
   void initialize(HostDto source, HostDto target);
 
+  /**
+   * Initialize the mapper using the source and target host specifications and the migration options. Migrators that
+   * do not support any options can rely on the default implementation.
+   *
+   * @param source  the source host
+   * @param target  the target host
+   * @param options the migration options
+   */
+  default void initialize(HostDto source, HostDto target, MigrationOptions options) {
+    initialize(source, target);
+  }
+
   /**
    * Migrate the layers.
    *
@@ -33,6 +48,35 @@ public interface ShogunMigrator {
    */
   void migrateApplications(Map<Integer, Integer> idMap, Legal legal, Theme theme, String toolConfigFile);
 
+  /**
+   * Read the current time of the source before any entity is read, so that modification times set by the source can be
+   * compared with it. It is recorded as the watermark of incremental migrations.
+   *
+   * @return the current time of the source, or null if it is unknown
+   */
+  default Instant sourceTime() {
+    return null;
+  }
+
+  /**
+   * Returns true if this migrator can {@link #export(SnapshotWriter) export} its source to a snapshot.
+   *
+   * @return true if exporting is supported
+   */
+  default boolean supportsExport() {
+    return false;
+  }
+
+  /**
+   * Export the raw source layers and applications to a snapshot, which can later be migrated using the 'snapshot'
+   * source type instead of fetching from the source again. Only called if {@link #supportsExport()} returns true.
+   *
+   * @param writer the snapshot writer
+   */
+  default void export(SnapshotWriter writer) {
+    throw new UnsupportedOperationException("This migrator does not support exporting snapshots.");
+  }
+
   /**
    * SPI: returns true if this migrator can handle the specified source API type.
    *
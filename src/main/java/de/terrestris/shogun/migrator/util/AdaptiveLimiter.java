@@ -0,0 +1,193 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent calls against a host with an AIMD (additive increase, multiplicative decrease)
+ * scheme. Every successful call raises the limit by 1/limit, so it grows by about one per round of calls. Transient
+ * failures and a short term latency well above the long term latency cut the limit, at most once per round trip.
+ * The latencies are tracked per operation, since e.g. saving an application takes much longer than saving a layer.
+ */
+@Log4j2
+public class AdaptiveLimiter {
+
+  private static final double BACKOFF_RATIO = 0.7;
+
+  /**
+   * The factor the short term latency may exceed the long term latency by before the limit is cut.
+   */
+  private static final double LATENCY_TOLERANCE = 2.0;
+
+  private static final double SHORT_TERM_WEIGHT = 0.1;
+
+  private static final double LONG_TERM_WEIGHT = 0.01;
+
+  private final String name;
+
+  private final int maxLimit;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition available = lock.newCondition();
+
+  private double limit;
+
+  private int inFlight = 0;
+
+  /**
+   * The short and long term latency of an operation.
+   */
+  private static final class Latency {
+
+    private double shortTermNanos = 0;
+
+    private double longTermNanos = 0;
+
+  }
+
+  private final Map<String, Latency> latencies = new HashMap<>();
+
+  private long lastDecrease;
+
+  /**
+   * Create a limiter starting at its maximum.
+   *
+   * @param name     the name used for logging, e.g. the host
+   * @param maxLimit the maximum number of concurrent calls
+   */
+  public AdaptiveLimiter(String name, int maxLimit) {
+    this.name = name;
+    this.maxLimit = Math.max(1, maxLimit);
+    this.limit = this.maxLimit;
+    // System.nanoTime() may be negative, so the first decrease must not depend on it
+    this.lastDecrease = System.nanoTime() - TimeUnit.MINUTES.toNanos(1);
+  }
+
+  /**
+   * Run the call once a slot is available and adapt the limit to its outcome.
+   *
+   * @param operation the operation whose latencies the call is compared with, e.g. 'create layers'
+   * @param call      the call
+   * @return the result of the call
+   */
+  public <T> T run(String operation, Callable<T> call) throws Exception {
+    acquire();
+    long start = System.nanoTime();
+    boolean overloaded = false;
+    try {
+      return call.call();
+    } catch (Exception e) {
+      overloaded = Retry.isTransient(e, true);
+      throw e;
+    } finally {
+      release(operation, System.nanoTime() - start, overloaded);
+    }
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #run}. The slot is awaited on the executor, the call is started once it is
+   * available and the slot is released when the future returned by the call completes.
+   *
+   * @param operation the operation whose latencies the call is compared with, e.g. 'create layers'
+   * @param call      starts the call
+   * @param executor  the executor to wait for a slot on
+   * @return the result of the call
+   */
+  public <T> CompletableFuture<T> runAsync(String operation, Supplier<CompletableFuture<T>> call, Executor executor) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    executor.execute(() -> {
+      try {
+        acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        result.completeExceptionally(e);
+        return;
+      }
+      long start = System.nanoTime();
+      CompletableFuture<T> future;
+      try {
+        future = call.get();
+      } catch (RuntimeException e) {
+        release(operation, System.nanoTime() - start, false);
+        result.completeExceptionally(e);
+        return;
+      }
+      // registered on the call itself, so the slot is released even if the result has been cancelled meanwhile
+      future.whenComplete((value, error) -> {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        release(operation, System.nanoTime() - start, cause instanceof Exception e && Retry.isTransient(e, true));
+        if (cause == null) {
+          result.complete(value);
+        } else {
+          result.completeExceptionally(cause);
+        }
+      });
+    });
+    return result;
+  }
+
+  /**
+   * @return the current limit
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void acquire() throws InterruptedException {
+    lock.lock();
+    try {
+      while (inFlight >= (int) limit) {
+        available.await();
+      }
+      ++inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(String operation, long nanos, boolean overloaded) {
+    lock.lock();
+    try {
+      --inFlight;
+      Latency latency = latencies.computeIfAbsent(operation, key -> new Latency());
+      if (latency.longTermNanos == 0) {
+        latency.shortTermNanos = nanos;
+        latency.longTermNanos = nanos;
+      } else {
+        latency.shortTermNanos += (nanos - latency.shortTermNanos) * SHORT_TERM_WEIGHT;
+        latency.longTermNanos += (nanos - latency.longTermNanos) * LONG_TERM_WEIGHT;
+      }
+      long now = System.nanoTime();
+      if (overloaded || latency.shortTermNanos > LATENCY_TOLERANCE * latency.longTermNanos) {
+        if (now - lastDecrease > latency.shortTermNanos && limit > 1) {
+          limit = Math.max(1, limit * BACKOFF_RATIO);
+          lastDecrease = now;
+          log.debug("Reduced concurrency limit of {} to {} ({}).", name, (int) limit,
+            overloaded ? "transient failure" : "latency increased");
+        }
+      } else if (limit < maxLimit) {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -1,37 +1,52 @@
 package de.terrestris.shogun.migrator.util;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import de.terrestris.shogun.migrator.model.HostDto;
 import de.terrestris.shogun.migrator.spi.ApplicationPostProcessor;
 import de.terrestris.shogun.migrator.spi.LayerPostProcessor;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.http.Header;
-import org.apache.http.auth.AuthenticationException;
-import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.TrustAllStrategy;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 import java.util.ServiceLoader;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
-import static org.apache.http.entity.ContentType.APPLICATION_JSON;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 @Log4j2
 public class ApiUtil {
@@ -40,149 +55,570 @@ public class ApiUtil {
     // prevent instantiation
   }
 
+  public static final String HTTP_REQUESTS = "http_request_duration_seconds";
+
   private static final List<LayerPostProcessor> LAYER_POSTPROCESSORS;
 
   private static final List<ApplicationPostProcessor> APPLICATION_POSTPROCESSORS;
 
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
   static {
     ServiceLoader<LayerPostProcessor> loader = ServiceLoader.load(LayerPostProcessor.class);
-    LAYER_POSTPROCESSORS = loader.stream().map(ServiceLoader.Provider::get).toList();
+    LAYER_POSTPROCESSORS = loader.stream().map(ServiceLoader.Provider::get)
+      .sorted(Comparator.comparingInt(LayerPostProcessor::order)).toList();
     ServiceLoader<ApplicationPostProcessor> appLoader = ServiceLoader.load(ApplicationPostProcessor.class);
-    APPLICATION_POSTPROCESSORS = appLoader.stream().map(ServiceLoader.Provider::get).toList();
+    APPLICATION_POSTPROCESSORS = appLoader.stream().map(ServiceLoader.Provider::get)
+      .sorted(Comparator.comparingInt(ApplicationPostProcessor::order)).toList();
+  }
+
+  private static CloseableHttpClient client(HostDto host) throws KeyStoreException, NoSuchAlgorithmException,
+    KeyManagementException {
+    return host.getClient().getClient();
+  }
+
+  /**
+   * Execute a request and record its latency and status code. If the host is rate limited, the request waits for its
+   * turn and reading the response body is throttled.
+   *
+   * @param host      the host
+   * @param request   the request
+   * @param operation the operation for the metrics, e.g. 'fetch'
+   * @param resource  the resource for the metrics, ids and query parameters are removed
+   * @return the response
+   */
+  private static CloseableHttpResponse execute(HostDto host, HttpUriRequest request, String operation, String resource)
+    throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    return execute(host, request, operation, resource, true);
+  }
+
+  private static CloseableHttpResponse execute(HostDto host, HttpUriRequest request, String operation, String resource,
+                                               boolean renewToken)
+    throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    String entity = metricsResource(resource);
+    if (host.getRequestRate() != null) {
+      host.getRequestRate().acquire(1);
+    }
+    if (!request.containsHeader("Accept-Encoding")) {
+      request.addHeader("Accept-Encoding", GzipCodec.GZIP);
+    }
+    long start = System.nanoTime();
+    CloseableHttpResponse response;
+    try {
+      response = client(host).execute(request);
+      Metrics.observe(HTTP_REQUESTS, start, "operation", operation, "resource", entity, "status",
+        String.valueOf(response.getStatusLine().getStatusCode()));
+    } catch (IOException e) {
+      Metrics.observe(HTTP_REQUESTS, start, "operation", operation, "resource", entity, "status", "error");
+      throw e;
+    }
+    Header authorization = request.getFirstHeader(RequestPolicy.AUTHORIZATION);
+    String renewed = renewToken ? RequestPolicy.renewedAuthorization(host, response.getStatusLine().getStatusCode(),
+      authorization == null ? null : authorization.getValue()) : null;
+    if (renewed != null) {
+      EntityUtils.consume(response.getEntity());
+      response.close();
+      request.setHeader(RequestPolicy.AUTHORIZATION, renewed);
+      return execute(host, request, operation, resource, false);
+    }
+    if (response.getEntity() != null) {
+      response.setEntity(GzipCodec.decode(response.getEntity(), host.getByteRate()));
+    }
+    return response;
+  }
+
+  /**
+   * @param resource a resource, e.g. 'layers/42?page=1'
+   * @return the resource without ids and query parameters, e.g. 'layers'
+   */
+  static String metricsResource(String resource) {
+    return resource.replaceAll("\\?.*$", "").replaceAll("/\\d+(?=/|$)", "");
   }
 
+  /**
+   * Fetch the initial access token of a host, if it has a client id. From then on the token is refreshed as needed.
+   *
+   * @param host the host
+   */
   public static void getToken(HostDto host) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, IOException {
     if (host.getClientId() == null) {
       return;
     }
+    if (host.getTokenManager() == null) {
+      host.setTokenManager(new TokenManager(host));
+    }
+    try {
+      host.getTokenManager().getToken();
+    } catch (GeneralSecurityException e) {
+      throw new MigrationException(e);
+    }
+  }
+
+  static JsonNode requestToken(HostDto host, List<NameValuePair> parameters) throws IOException,
+    KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
     ObjectMapper mapper = new ObjectMapper();
     String url = String.format("%sauth/realms/SHOGun/protocol/openid-connect/token", host.getHostname());
-    try (CloseableHttpClient client = HttpClients.custom()
-      .setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build())
-      .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-      .build()) {
-      HttpPost post = new HttpPost(url);
-      log.debug("Fetching token.");
+    HttpPost post = new HttpPost(url);
+    post.setEntity(new UrlEncodedFormEntity(parameters));
+    post.addHeader("Content-Type", "application/x-www-form-urlencoded");
+
+    try (CloseableHttpResponse response = execute(host, post, "token", "token")) {
+      int status = response.getStatusLine().getStatusCode();
+      JsonNode node = mapper.readTree(response.getEntity().getContent());
+      EntityUtils.consume(response.getEntity());
+      if (status >= 400 || node == null || !node.has("access_token")) {
+        throw new HttpStatusException(post.toString(), status);
+      }
+      return node;
+    }
+  }
+
+  private static HttpGet createGet(HostDto host, String resource, boolean isBoot) throws IOException {
+    HttpGet get = new HttpGet(host.getHostname() + resource);
+    log.debug("Fetching: {}", get.toString());
 
-      UrlEncodedFormEntity entity = new UrlEncodedFormEntity(List.of(
-        new BasicNameValuePair("username", host.getUsername()),
-        new BasicNameValuePair("password", host.getPassword()),
-        new BasicNameValuePair("grant_type", "password"),
-        new BasicNameValuePair("client_id", host.getClientId())
-      ));
-      post.setEntity(entity);
-      post.addHeader("Content-Type", "application/x-www-form-urlencoded");
+    get.addHeader(RequestPolicy.AUTHORIZATION, isBoot ? RequestPolicy.bearer(host) : RequestPolicy.basic(host));
+    return get;
+  }
 
-      CloseableHttpResponse response = client.execute(post);
+  private static JsonNode fetchNode(HostDto host, String resource, boolean isBoot) throws IOException,
+    KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    ObjectMapper mapper = new ObjectMapper();
+    HttpGet get = createGet(host, resource, isBoot);
+    try (CloseableHttpResponse response = execute(host, get, "fetch", resource)) {
+      log.debug("Status code: {}", response.getStatusLine().getStatusCode());
 
-      host.setToken(mapper.readTree(response.getEntity().getContent()).get("access_token").asText());
+      var node = mapper.readTree(response.getEntity().getContent());
+      EntityUtils.consume(response.getEntity());
+      return node;
     }
   }
 
+  /**
+   * Fetch the current time of a host from the Date header of a response, so that timestamps set by the host can be
+   * compared with it regardless of the local clock. Falls back to the local clock if the host sends no Date header.
+   *
+   * @param host the host
+   * @return the current time of the host, with a precision of one second
+   */
+  public static Instant fetchTime(HostDto host) throws IOException, KeyStoreException, NoSuchAlgorithmException,
+    KeyManagementException {
+    HttpHead head = new HttpHead(host.getHostname());
+    try (CloseableHttpResponse response = execute(host, head, "time", "")) {
+      Header header = response.getFirstHeader("Date");
+      Date date = header == null ? null : DateUtils.parseDate(header.getValue());
+      if (date == null) {
+        log.warn("{} did not send its time, using the local time instead.", host.getHostname());
+        return Instant.now();
+      }
+      return date.toInstant();
+    }
+  }
+
+  /**
+   * Fetch a resource. For boot hosts all pages of a list resource are fetched and their contents are returned as one
+   * array.
+   *
+   * @param host     the host to fetch from
+   * @param resource the resource, e.g. 'rest/projectlayers'
+   * @param isBoot   whether the host is a SHOGun boot instance
+   * @return the resource
+   */
   public static JsonNode fetch(HostDto host, String resource, boolean isBoot) throws IOException, KeyStoreException,
     NoSuchAlgorithmException, KeyManagementException {
+    if (isBoot) {
+      ArrayNode result = new ObjectMapper().createArrayNode();
+      streamPages(host, resource, result::add);
+      return result;
+    }
+    return fetchNode(host, resource, false);
+  }
+
+  /**
+   * Fetch a list resource and pass its elements to the consumer one at a time. For shogun2 hosts the elements are
+   * handed over while the response is still being read, so only one element needs to be kept in memory. For boot
+   * hosts the resource is fetched page by page, prefetching the next page while the current one is consumed.
+   *
+   * @param host     the host to fetch from
+   * @param resource the list resource, e.g. 'rest/projectlayers'
+   * @param isBoot   whether the host is a SHOGun boot instance
+   * @param consumer the consumer to call for each element
+   * @return the number of elements
+   */
+  public static int stream(HostDto host, String resource, boolean isBoot, Consumer<JsonNode> consumer)
+    throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    if (isBoot) {
+      return streamPages(host, resource, consumer);
+    }
     ObjectMapper mapper = new ObjectMapper();
-    String source = host.getHostname();
-    try (CloseableHttpClient client = HttpClients.custom()
-      .setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build())
-      .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-      .build()) {
-      source = source + resource;
-      HttpGet get = new HttpGet(source);
-      log.debug("Fetching: {}", get.toString());
-
-      if (isBoot) {
-        get.addHeader("Authorization", "Bearer " + host.getToken());
-      } else {
-        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(host.getUsername(), host.getPassword());
-        Header header = null;
-        try {
-          header = new BasicScheme(UTF_8).authenticate(credentials, get, null);
-        } catch (AuthenticationException e) {
-          log.error("Error creating authentication: {}", e.getMessage());
-          log.trace("Stack trace:", e);
+    HttpGet get = createGet(host, resource, false);
+    try (CloseableHttpResponse response = execute(host, get, "fetch", resource);
+         JsonParser parser = mapper.createParser(response.getEntity().getContent())) {
+      log.debug("Status code: {}", response.getStatusLine().getStatusCode());
+
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT) {
+        token = seekField(parser, "content");
+      }
+      if (token != JsonToken.START_ARRAY) {
+        throw new IOException(String.format("Expected a list when fetching %s, got %s", resource, token));
+      }
+      int count = 0;
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        consumer.accept(mapper.readTree(parser));
+        ++count;
+      }
+      EntityUtils.consume(response.getEntity());
+      return count;
+    }
+  }
+
+  private static int streamPages(HostDto host, String resource, Consumer<JsonNode> consumer) throws IOException {
+    int size = host.getPageSize();
+    String separator = resource.contains("?") ? "&" : "?";
+    int count = 0;
+    try (ExecutorService prefetcher = Executors.newVirtualThreadPerTaskExecutor()) {
+      Future<JsonNode> next = prefetcher.submit(() -> fetchNode(host, resource + separator + pageQuery(0, size), true));
+      for (int page = 0; next != null; ++page) {
+        JsonNode node = awaitPage(next);
+        JsonNode content = node.has("content") ? node.get("content") : node;
+        if (isLastPage(node, content, page, size)) {
+          next = null;
+        } else {
+          String query = pageQuery(page + 1, size);
+          next = prefetcher.submit(() -> fetchNode(host, resource + separator + query, true));
+        }
+        for (JsonNode element : content) {
+          consumer.accept(element);
+          ++count;
         }
-        get.addHeader(header);
       }
-      CloseableHttpResponse response = client.execute(get);
-      log.debug("Status code: {}", response.getStatusLine().getStatusCode());
+    }
+    return count;
+  }
 
-      var node = mapper.readTree(response.getEntity().getContent());
-      if (isBoot && node.has("content")) {
-        node = node.get("content");
+  static String pageQuery(int page, int size) {
+    return String.format("page=%s&size=%s&sort=id", page, size);
+  }
+
+  private static JsonNode awaitPage(Future<JsonNode> page) throws IOException {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException io) {
+        throw io;
       }
-      return node;
+      throw new IOException(e.getCause());
     }
   }
 
-  public static void delete(HostDto host, String resource) throws IOException, KeyStoreException,
-    NoSuchAlgorithmException, KeyManagementException {
-    String source = host.getHostname();
-    try (CloseableHttpClient client = HttpClients.custom()
-      .setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build())
-      .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-      .build()) {
-      source = source + resource;
-      HttpDelete delete = new HttpDelete(source);
-      delete.addHeader("Authorization", "Bearer " + host.getToken());
-      CloseableHttpResponse response = client.execute(delete);
-      log.trace("Status code: {}", response.getStatusLine().getStatusCode());
-      response.close();
+  static boolean isLastPage(JsonNode node, JsonNode content, int page, int size) {
+    if (!node.has("content")) {
+      // not a paged response
+      return true;
+    }
+    if (content.isEmpty()) {
+      return true;
+    }
+    if (node.has("last")) {
+      return node.get("last").booleanValue();
     }
+    // newer Spring Data versions serialize the page metadata in a separate object
+    JsonNode meta = node.has("page") ? node.get("page") : node;
+    if (meta.has("totalPages")) {
+      return page + 1 >= meta.get("totalPages").intValue();
+    }
+    return content.size() < size;
   }
 
-  private static JsonNode saveEntity(HostDto host, byte[] bs, String entity) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, IOException {
-    ObjectMapper mapper = new ObjectMapper();
-    HttpPost post = new HttpPost(host.getHostname() + entity + "s");
-    log.info("Saving {}...", entity);
-    try (CloseableHttpClient client = HttpClients.custom()
-      .setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build())
-      .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-      .build()) {
-      post.addHeader("Authorization", "Bearer " + host.getToken());
-      post.setEntity(new ByteArrayEntity(bs, APPLICATION_JSON));
-      try (CloseableHttpResponse response = client.execute(post)) {
-        return mapper.readTree(response.getEntity().getContent());
+  private static JsonToken seekField(JsonParser parser, String field) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.currentName();
+      JsonToken token = parser.nextToken();
+      if (name.equals(field)) {
+        return token;
+      }
+      parser.skipChildren();
+    }
+    return null;
+  }
+
+  /**
+   * Run a write call against a host. The number of concurrent calls is limited by the adaptive limiter of the host and
+   * transient failures are retried with backoff.
+   *
+   * @param host        the host
+   * @param operation   the operation the adaptive limiter tracks the latency of, e.g. 'create layers'
+   * @param description a description of the call used for logging
+   * @param idempotent  whether repeating the call has the same effect as calling it once, see
+   *                    {@link Retry#isTransient(Exception, boolean)}
+   * @param call        the call
+   * @return the result of the call
+   */
+  private static <T> T write(HostDto host, String operation, String description, boolean idempotent,
+                             Callable<T> call) throws IOException {
+    try {
+      return Retry.retry(description, host.getRetries(), idempotent, () -> host.getLimiter().run(operation, call));
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException(e);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static HttpStatusException statusException(HttpUriRequest request, CloseableHttpResponse response) {
+    Header retryAfter = response.getFirstHeader("Retry-After");
+    return RequestPolicy.statusException(request.toString(), response.getStatusLine().getStatusCode(),
+      retryAfter == null ? null : retryAfter.getValue());
+  }
+
+  public static void delete(HostDto host, String resource) throws IOException {
+    write(host, "delete " + metricsResource(resource), "Deleting " + resource, true, () -> {
+      HttpDelete delete = new HttpDelete(host.getHostname() + resource);
+      delete.addHeader(RequestPolicy.AUTHORIZATION, RequestPolicy.bearer(host));
+      try (CloseableHttpResponse response = execute(host, delete, "delete", resource)) {
+        int status = response.getStatusLine().getStatusCode();
+        log.trace("Status code: {}", status);
+        EntityUtils.consume(response.getEntity());
+        if (!RequestPolicy.isDeleted(status)) {
+          throw statusException(delete, response);
+        }
       }
+      return null;
+    });
+  }
+
+  private static JsonNode saveEntity(HostDto host, HttpEntity body, String entity, Integer id) throws IOException {
+    if (host.getDryRun() != null) {
+      CountingOutputStream out = new CountingOutputStream(NullOutputStream.INSTANCE);
+      body.writeTo(out);
+      int fakeId = host.getDryRun().recordPayload(entity, out.getByteCount());
+      return JsonNodeFactory.instance.objectNode().put("id", id == null ? fakeId : id);
     }
+    if (id == null) {
+      log.info("Saving {}...", entity);
+    } else {
+      log.info("Updating {} {}...", entity, id);
+    }
+    // a new entity may be saved twice if a lost response is retried, an update may not
+    String operation = RequestPolicy.writeOperation(entity, id);
+    return write(host, operation, RequestPolicy.writeDescription(entity, id), id != null, () -> {
+      ObjectMapper mapper = new ObjectMapper();
+      HttpEntityEnclosingRequestBase request = id == null ? new HttpPost(host.getHostname() + entity + "s") :
+        new HttpPut(String.format("%s%ss/%s", host.getHostname(), entity, id));
+      request.addHeader(RequestPolicy.AUTHORIZATION, RequestPolicy.bearer(host));
+      request.setEntity(host.isGzipRequests() ? GzipCodec.compress(body) : GzipCodec.count(body));
+      try (CloseableHttpResponse response = execute(host, request, id == null ? "create" : "update", entity + "s")) {
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 400) {
+          log.debug("Response: {}", EntityUtils.toString(response.getEntity()));
+          throw statusException(request, response);
+        }
+        JsonNode result;
+        try {
+          result = mapper.readTree(response.getEntity().getContent());
+        } catch (JsonProcessingException e) {
+          throw new InvalidResponseException(String.format("%s returned an invalid response", request), e);
+        }
+        EntityUtils.consume(response.getEntity());
+        if (result == null || !result.has("id")) {
+          throw new InvalidResponseException(String.format("%s did not return an id", request));
+        }
+        return result;
+      }
+    });
   }
 
   public static int saveLayer(byte[] bs, HostDto host)
     throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
-    ObjectMapper mapper = new ObjectMapper();
-    JsonNode node = mapper.readTree(bs);
-    LAYER_POSTPROCESSORS.forEach(processor -> {
-      processor.postprocess(node);
-    });
-    bs = mapper.writeValueAsBytes(node);
-    JsonNode result = saveEntity(host, bs, "layer");
+    return saveLayer(bs, host, null);
+  }
+
+  /**
+   * Save a new layer or update an existing one.
+   *
+   * @param bs   the layer JSON
+   * @param host the target host
+   * @param id   the id of the existing layer to update, or null to save a new layer
+   * @return the id of the layer
+   */
+  public static int saveLayer(byte[] bs, HostDto host, Integer id)
+    throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
+    return saveLayer((ObjectNode) MAPPER.readTree(bs), host, id);
+  }
+
+  /**
+   * Save a new layer or update an existing one. The layer post processors modify the node in place, then it is
+   * serialized straight into the request body.
+   *
+   * @param node the layer
+   * @param host the target host
+   * @param id   the id of the existing layer to update, or null to save a new layer
+   * @return the id of the layer
+   */
+  public static int saveLayer(ObjectNode node, HostDto host, Integer id) throws IOException {
+    return savePostprocessedLayer(postprocessLayer(node), host, id);
+  }
+
+  /**
+   * Save a new layer or update an existing one, the layer post processors have already been run on the node, e.g. to
+   * compare it with the existing layer.
+   *
+   * @param node the layer
+   * @param host the target host
+   * @param id   the id of the existing layer to update, or null to save a new layer
+   * @return the id of the layer
+   */
+  public static int savePostprocessedLayer(ObjectNode node, HostDto host, Integer id) throws IOException {
+    if (id != null) {
+      node.put("id", id);
+    }
+    JsonNode result = saveEntity(host, new JsonEntity(gen -> MAPPER.writeTree(gen, node)), "layer", id);
+    return result.get("id").intValue();
+  }
+
+  public static int saveLayer(JsonEntity.JsonWriter writer, HostDto host)
+    throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
+    return saveLayer(writer, host, null);
+  }
+
+  /**
+   * Save a new layer or update an existing one, the layer JSON is written by the writer. If no layer post processors
+   * are registered, a new layer is generated straight into the request body.
+   *
+   * @param writer the writer generating the layer JSON
+   * @param host   the target host
+   * @param id     the id of the existing layer to update, or null to save a new layer
+   * @return the id of the layer
+   */
+  public static int saveLayer(JsonEntity.JsonWriter writer, HostDto host, Integer id)
+    throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
+    if (id != null || !LAYER_POSTPROCESSORS.isEmpty()) {
+      TokenBuffer buffer = new TokenBuffer(MAPPER, false);
+      writer.write(buffer);
+      return saveLayer((ObjectNode) MAPPER.readTree(buffer.asParser()), host, id);
+    }
+    JsonNode result = saveEntity(host, new JsonEntity(writer), "layer", null);
     return result.get("id").intValue();
   }
 
   public static void makeLayerPublic(HostDto host, int id) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException, IOException {
-    HttpPost post = new HttpPost(String.format("%slayers/%s/permissions/public", host.getHostname(), id));
-    try (CloseableHttpClient client = HttpClients.custom()
-      .setSSLContext(new SSLContextBuilder().loadTrustMaterial(null, TrustAllStrategy.INSTANCE).build())
-      .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-      .build()) {
-      post.addHeader("Authorization", "Bearer " + host.getToken());
-      try (CloseableHttpResponse response = client.execute(post)) {
+    if (host.getDryRun() != null) {
+      return;
+    }
+    // making a layer public twice does no harm
+    write(host, "public layers", "Making layer " + id + " public", true, () -> {
+      HttpPost post = new HttpPost(String.format("%slayers/%s/permissions/public", host.getHostname(), id));
+      post.addHeader(RequestPolicy.AUTHORIZATION, RequestPolicy.bearer(host));
+      try (CloseableHttpResponse response = execute(host, post, "public", "layers/permissions/public")) {
+        EntityUtils.consume(response.getEntity());
+        // fail the permission task, so the layer is not recorded in the journal
         if (response.getStatusLine().getStatusCode() != 200) {
-          log.warn("Unable to make layer public.");
+          throw statusException(post, response);
         }
       }
-    }
+      return null;
+    });
   }
 
-  public static void saveApplication(byte[] bs, HostDto host)
+  public static int saveApplication(byte[] bs, HostDto host)
     throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
-    ObjectMapper mapper = new ObjectMapper();
-    JsonNode node = mapper.readTree(bs);
-    APPLICATION_POSTPROCESSORS.forEach(processor -> {
+    return saveApplication(bs, host, null);
+  }
+
+  /**
+   * Save a new application or update an existing one.
+   *
+   * @param bs   the application JSON
+   * @param host the target host
+   * @param id   the id of the existing application to update, or null to save a new application
+   * @return the id of the application
+   */
+  public static int saveApplication(byte[] bs, HostDto host, Integer id)
+    throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException {
+    return saveApplication((ObjectNode) MAPPER.readTree(bs), host, id);
+  }
+
+  /**
+   * Save a new application or update an existing one. The application post processors modify the node in place, then
+   * it is serialized straight into the request body.
+   *
+   * @param node the application
+   * @param host the target host
+   * @param id   the id of the existing application to update, or null to save a new application
+   * @return the id of the application
+   */
+  public static int saveApplication(ObjectNode node, HostDto host, Integer id) throws IOException {
+    return savePostprocessedApplication(postprocessApplication(node), host, id);
+  }
+
+  /**
+   * Save a new application or update an existing one, the application post processors have already been run on the
+   * node, e.g. to compare it with the existing application.
+   *
+   * @param node the application
+   * @param host the target host
+   * @param id   the id of the existing application to update, or null to save a new application
+   * @return the id of the application
+   */
+  public static int savePostprocessedApplication(ObjectNode node, HostDto host, Integer id) throws IOException {
+    if (id != null) {
+      node.put("id", id);
+    }
+    JsonNode result = saveEntity(host, new JsonEntity(gen -> MAPPER.writeTree(gen, node)), "application", id);
+    return result.get("id").intValue();
+  }
+
+  /**
+   * Run the layer post processors on a layer.
+   *
+   * @param node the layer
+   * @return the node
+   */
+  public static ObjectNode postprocessLayer(ObjectNode node) {
+    for (LayerPostProcessor processor : LAYER_POSTPROCESSORS) {
       processor.postprocess(node);
-    });
-    bs = mapper.writeValueAsBytes(node);
-    saveEntity(host, bs, "application");
+    }
+    return node;
+  }
+
+  /**
+   * Run the layer post processors on a layer and set the id of the layer to update, if any.
+   */
+  static void postprocessLayer(ObjectNode node, Integer id) {
+    postprocessLayer(node);
+    if (id != null) {
+      node.put("id", id);
+    }
+  }
+
+  /**
+   * Run the application post processors on an application.
+   *
+   * @param node the application
+   * @return the node
+   */
+  public static ObjectNode postprocessApplication(ObjectNode node) {
+    for (ApplicationPostProcessor processor : APPLICATION_POSTPROCESSORS) {
+      processor.postprocess(node);
+    }
+    return node;
+  }
+
+  /**
+   * Run the application post processors on an application and set the id of the application to update, if any.
+   */
+  static void postprocessApplication(ObjectNode node, Integer id) {
+    postprocessApplication(node);
+    if (id != null) {
+      node.put("id", id);
+    }
   }
 
 }
@@ -0,0 +1,143 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.Theme;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts that are identical across all migrated applications: the legal info, the theme and the tool config. They
+ * are built once per run (the tool config file is read and parsed only once) and set in each application.
+ */
+@Log4j2
+public class ApplicationTemplate {
+
+  public static final ApplicationTemplate NONE = new ApplicationTemplate(null, null, null);
+
+  private static final String CLIENT_CONFIG = "clientConfig";
+
+  private final ObjectNode legal;
+
+  private final ObjectNode theme;
+
+  private final JsonNode toolConfig;
+
+  private ApplicationTemplate(ObjectNode legal, ObjectNode theme, JsonNode toolConfig) {
+    this.legal = legal;
+    this.theme = theme;
+    this.toolConfig = toolConfig;
+  }
+
+  /**
+   * Build the template from the command line options.
+   *
+   * @param legal          the legal info to set, or null
+   * @param theme          the theme to set, or null
+   * @param toolConfigFile the tool config file to use, or null
+   * @return the template
+   */
+  public static ApplicationTemplate of(Legal legal, Theme theme, String toolConfigFile) {
+    ObjectNode legalNode = null;
+    if (legal != null) {
+      legalNode = JsonNodeFactory.instance.objectNode();
+      addToNode(legal.getContact(), "contact", legalNode);
+      addToNode(legal.getImprint(), "imprint", legalNode);
+      addToNode(legal.getPrivacy(), "privacy", legalNode);
+    }
+    ObjectNode themeNode = null;
+    if (theme != null) {
+      themeNode = JsonNodeFactory.instance.objectNode();
+      addToNode(theme.getPrimaryColor(), "primaryColor", themeNode);
+      addToNode(theme.getSecondaryColor(), "secondaryColor", themeNode);
+      addToNode(theme.getComplementaryColor(), "complementaryColor", themeNode);
+      addToNode(theme.getLogoPath(), "logoPath", themeNode);
+      addToNode(theme.getFaviconPath(), "faviconPath", themeNode);
+    }
+    JsonNode toolConfig = null;
+    if (toolConfigFile != null && !toolConfigFile.isEmpty()) {
+      try {
+        toolConfig = new ObjectMapper().readTree(new File(toolConfigFile));
+      } catch (IOException e) {
+        throw new MigrationException(e);
+      }
+    }
+    legalNode = legalNode == null || legalNode.isEmpty() ? null : legalNode;
+    themeNode = themeNode == null || themeNode.isEmpty() ? null : themeNode;
+    if (legalNode == null && themeNode == null && toolConfig == null) {
+      return NONE;
+    }
+    List<String> parts = new ArrayList<>();
+    if (legalNode != null) {
+      parts.add("legal info");
+    }
+    if (themeNode != null) {
+      parts.add("theme");
+    }
+    if (toolConfig != null) {
+      parts.add("tool config from " + toolConfigFile);
+    }
+    log.info("Setting the {} in all applications.", String.join(", ", parts));
+    return new ApplicationTemplate(legalNode, themeNode, toolConfig);
+  }
+
+  private static void addToNode(String value, String fieldName, ObjectNode node) {
+    if (value != null && !value.isEmpty()) {
+      node.put(fieldName, value);
+    }
+  }
+
+  /**
+   * Set the legal info and the theme in the client config of the application and its tool config, replacing
+   * existing values. Each application gets its own copy, so post processors may modify them.
+   *
+   * @param application the migrated application
+   * @return the application
+   */
+  public ObjectNode apply(ObjectNode application) {
+    applyToolConfig(application);
+    return applyClientConfig(application);
+  }
+
+  /**
+   * Set the tool config of the application, replacing an existing one. A new tool config field is appended, so
+   * migrators building the application from scratch can call this first to keep the field order of their output.
+   *
+   * @param application the migrated application
+   * @return the application
+   */
+  public ObjectNode applyToolConfig(ObjectNode application) {
+    if (toolConfig != null) {
+      application.set("toolConfig", toolConfig.deepCopy());
+    }
+    return application;
+  }
+
+  /**
+   * Set the legal info and the theme in the client config of the application, replacing existing values.
+   *
+   * @param application the migrated application
+   * @return the application
+   */
+  public ObjectNode applyClientConfig(ObjectNode application) {
+    if (legal != null || theme != null) {
+      JsonNode node = application.get(CLIENT_CONFIG);
+      ObjectNode clientConfig = node instanceof ObjectNode objectNode ? objectNode : application.putObject(CLIENT_CONFIG);
+      if (legal != null) {
+        clientConfig.set("legal", legal.deepCopy());
+      }
+      if (theme != null) {
+        clientConfig.set("theme", theme.deepCopy());
+      }
+    }
+    return application;
+  }
+
+}
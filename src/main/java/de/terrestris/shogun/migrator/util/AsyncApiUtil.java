@@ -0,0 +1,347 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.terrestris.shogun.migrator.model.HostDto;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static de.terrestris.shogun.migrator.util.ApiUtil.HTTP_REQUESTS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Asynchronous counterparts of the {@link ApiUtil} operations, based on the JDK HTTP client. Requests are multiplexed
+ * over HTTP/2 connections if the host supports it, so many of them can be in flight without a thread or connection
+ * each. Every request times out after the request timeout of the host, and cancelling a returned future aborts the
+ * request in flight, including pending retries.
+ * <p>
+ * Like their blocking counterparts, writes pass the concurrency limiter of the host and are retried with backoff on
+ * transient failures, a rejected access token is renewed once, responses are requested gzip compressed, request bodies
+ * are compressed if enabled for the host, metrics are recorded, nothing is written during a dry run and the request
+ * rate limit of a host is applied. The byte rate limit is not applied, since responses are read by the client.
+ */
+@Log4j2
+public class AsyncApiUtil {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Runs blocking steps like waiting for the request rate limit or refreshing a token off the client's threads.
+   */
+  private static final Executor BLOCKING = Executors.newVirtualThreadPerTaskExecutor();
+
+  /**
+   * The request in flight for an operation, so cancelling the operation aborts it.
+   */
+  private static final class Exchange {
+
+    private volatile CompletableFuture<?> current;
+
+    private volatile boolean cancelled = false;
+
+    private void cancel() {
+      cancelled = true;
+      CompletableFuture<?> future = current;
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+
+  }
+
+  private AsyncApiUtil() {
+    // prevent instantiation
+  }
+
+  /**
+   * Fetch a resource. For boot hosts all pages of a list resource are fetched one after another and their contents
+   * are returned as one array.
+   *
+   * @param host     the host to fetch from
+   * @param resource the resource, e.g. 'rest/projectlayers'
+   * @param isBoot   whether the host is a SHOGun boot instance
+   * @return the resource
+   */
+  public static CompletableFuture<JsonNode> fetch(HostDto host, String resource, boolean isBoot) {
+    Exchange exchange = new Exchange();
+    if (!isBoot) {
+      return cancellable(exchange, fetchNode(exchange, host, resource, false));
+    }
+    String separator = resource.contains("?") ? "&" : "?";
+    ArrayNode result = MAPPER.createArrayNode();
+    return cancellable(exchange, fetchPages(exchange, host, resource + separator, 0, result));
+  }
+
+  private static CompletableFuture<JsonNode> fetchPages(Exchange exchange, HostDto host, String resource, int page,
+                                                        ArrayNode result) {
+    int size = host.getPageSize();
+    return fetchNode(exchange, host, resource + ApiUtil.pageQuery(page, size), true).thenCompose(node -> {
+      JsonNode content = node.has("content") ? node.get("content") : node;
+      content.forEach(result::add);
+      if (ApiUtil.isLastPage(node, content, page, size)) {
+        return CompletableFuture.completedFuture(result);
+      }
+      return fetchPages(exchange, host, resource, page + 1, result);
+    });
+  }
+
+  private static CompletableFuture<JsonNode> fetchNode(Exchange exchange, HostDto host, String resource,
+                                                       boolean isBoot) {
+    return request(host, resource, isBoot ? null : RequestPolicy.basic(host))
+      .thenCompose(builder -> {
+        HttpRequest request = builder.GET().build();
+        log.debug("Fetching: {}", request);
+        return send(exchange, host, request, "fetch", resource, true);
+      })
+      .thenApply(response -> parse(response, false));
+  }
+
+  /**
+   * Save a new layer or update an existing one. The layer post processors modify the node before it is sent.
+   *
+   * @param node the layer
+   * @param host the target host
+   * @param id   the id of the existing layer to update, or null to save a new layer
+   * @return the id of the layer
+   */
+  public static CompletableFuture<Integer> saveLayer(ObjectNode node, HostDto host, Integer id) {
+    ApiUtil.postprocessLayer(node, id);
+    return saveEntity(host, node, "layer", id);
+  }
+
+  /**
+   * Save a new application or update an existing one. The application post processors modify the node before it is
+   * sent.
+   *
+   * @param node the application
+   * @param host the target host
+   * @param id   the id of the existing application to update, or null to save a new application
+   * @return the id of the application
+   */
+  public static CompletableFuture<Integer> saveApplication(ObjectNode node, HostDto host, Integer id) {
+    ApiUtil.postprocessApplication(node, id);
+    return saveEntity(host, node, "application", id);
+  }
+
+  private static CompletableFuture<Integer> saveEntity(HostDto host, ObjectNode node, String entity, Integer id) {
+    byte[] bs;
+    try {
+      bs = MAPPER.writeValueAsBytes(node);
+    } catch (JsonProcessingException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    if (host.getDryRun() != null) {
+      int fakeId = host.getDryRun().recordPayload(entity, bs.length);
+      return CompletableFuture.completedFuture(id == null ? fakeId : id);
+    }
+    String resource = id == null ? entity + "s" : String.format("%ss/%s", entity, id);
+    Exchange exchange = new Exchange();
+    return write(exchange, host, RequestPolicy.writeOperation(entity, id), RequestPolicy.writeDescription(entity, id),
+      id != null,
+      () -> request(host, resource, null)
+        .thenCompose(builder -> {
+          builder.header("Content-Type", "application/json");
+          if (host.isGzipRequests()) {
+            builder.header("Content-Encoding", GzipCodec.GZIP);
+          }
+          byte[] body = host.isGzipRequests() ? GzipCodec.compress(bs) : GzipCodec.count(bs);
+          HttpRequest request = builder.method(id == null ? "POST" : "PUT",
+            HttpRequest.BodyPublishers.ofByteArray(body)).build();
+          return send(exchange, host, request, id == null ? "create" : "update", entity + "s", true);
+        })
+        .thenApply(response -> {
+          JsonNode result = parse(response, true);
+          if (result == null || !result.has("id")) {
+            throw new CompletionException(new InvalidResponseException(String.format("%s did not return an id",
+              response.request())));
+          }
+          return result.get("id").intValue();
+        }));
+  }
+
+  /**
+   * Delete a resource. A resource that doesn't exist counts as deleted.
+   *
+   * @param host     the host
+   * @param resource the resource, e.g. 'layers/42'
+   * @return completes when the resource has been deleted
+   */
+  public static CompletableFuture<Void> delete(HostDto host, String resource) {
+    Exchange exchange = new Exchange();
+    return write(exchange, host, "delete " + ApiUtil.metricsResource(resource), "Deleting " + resource, true,
+      () -> request(host, resource, null)
+        .thenCompose(builder -> send(exchange, host, builder.DELETE().build(), "delete", resource, true))
+        .thenAccept(response -> {
+          log.trace("Status code: {}", response.statusCode());
+          if (!RequestPolicy.isDeleted(response.statusCode())) {
+            throw new CompletionException(statusException(response));
+          }
+        }));
+  }
+
+  /**
+   * Make a layer public. Any response other than 200 fails the returned future, as with
+   * {@link ApiUtil#makeLayerPublic}.
+   *
+   * @param host the target host
+   * @param id   the layer id
+   * @return completes when the request finished
+   */
+  public static CompletableFuture<Void> makeLayerPublic(HostDto host, int id) {
+    if (host.getDryRun() != null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    String resource = String.format("layers/%s/permissions/public", id);
+    Exchange exchange = new Exchange();
+    // making a layer public twice does no harm
+    return write(exchange, host, "public layers", "Making layer " + id + " public", true,
+      () -> request(host, resource, null)
+        .thenCompose(builder -> send(exchange, host, builder.POST(HttpRequest.BodyPublishers.noBody()).build(),
+          "public", "layers/permissions/public", true))
+        .thenAccept(response -> {
+          if (response.statusCode() != 200) {
+            throw new CompletionException(statusException(response));
+          }
+        }));
+  }
+
+  /**
+   * Run a write through the concurrency limiter of the host and retry transient failures, like the blocking writes.
+   */
+  private static <T> CompletableFuture<T> write(Exchange exchange, HostDto host, String operation, String description,
+                                                boolean idempotent, Supplier<CompletableFuture<T>> call) {
+    return cancellable(exchange, retry(exchange, description, host.getRetries(), idempotent, 1,
+      () -> host.getLimiter().runAsync(operation, call, BLOCKING)));
+  }
+
+  /**
+   * Create a request builder once the request rate limit of the host allows another request.
+   *
+   * @param host          the host
+   * @param resource      the resource
+   * @param authorization the authorization header, or null to use the access token of the host
+   * @return the request builder
+   */
+  private static CompletableFuture<HttpRequest.Builder> request(HostDto host, String resource, String authorization) {
+    return CompletableFuture.supplyAsync(() -> {
+      if (host.getRequestRate() != null) {
+        host.getRequestRate().acquire(1);
+      }
+      try {
+        return HttpRequest.newBuilder(URI.create(host.getHostname() + resource))
+          .timeout(host.getRequestTimeout())
+          .header("Accept-Encoding", GzipCodec.GZIP)
+          .header(RequestPolicy.AUTHORIZATION, authorization == null ? RequestPolicy.bearer(host) : authorization);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, BLOCKING);
+  }
+
+  /**
+   * Send a request and record its latency and status code. If the access token is rejected, it is renewed and the
+   * request is sent once more.
+   */
+  private static CompletableFuture<HttpResponse<byte[]>> send(Exchange exchange, HostDto host, HttpRequest request,
+                                                              String operation, String resource, boolean renewToken) {
+    if (exchange.cancelled) {
+      return CompletableFuture.failedFuture(new CancellationException());
+    }
+    String entity = ApiUtil.metricsResource(resource);
+    long start = System.nanoTime();
+    CompletableFuture<HttpResponse<byte[]>> future;
+    try {
+      future = host.getAsyncClient().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+    } catch (GeneralSecurityException e) {
+      return CompletableFuture.failedFuture(new MigrationException(e));
+    }
+    exchange.current = future;
+    return future.whenComplete((response, error) -> Metrics.observe(HTTP_REQUESTS, start, "operation", operation,
+        "resource", entity, "status", error == null ? String.valueOf(response.statusCode()) : "error"))
+      .thenCompose(response -> {
+        if (!renewToken || response.statusCode() != 401) {
+          return CompletableFuture.completedFuture(response);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+          try {
+            return RequestPolicy.renewedAuthorization(host, response.statusCode(),
+              request.headers().firstValue(RequestPolicy.AUTHORIZATION).orElse(null));
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        }, BLOCKING).thenCompose(renewed -> renewed == null ? CompletableFuture.completedFuture(response) :
+          send(exchange, host, HttpRequest.newBuilder(request,
+              (name, value) -> !name.equalsIgnoreCase(RequestPolicy.AUTHORIZATION))
+            .header(RequestPolicy.AUTHORIZATION, renewed).build(), operation, resource, false));
+      });
+  }
+
+  private static JsonNode parse(HttpResponse<byte[]> response, boolean checkStatus) {
+    int status = response.statusCode();
+    log.debug("Status code: {}", status);
+    try {
+      byte[] body = GzipCodec.decode(response.body(), response.headers().firstValue("Content-Encoding").orElse(null));
+      if (checkStatus && status >= 400) {
+        log.debug("Response: {}", new String(body, UTF_8));
+        throw new CompletionException(statusException(response));
+      }
+      return body.length == 0 ? JsonNodeFactory.instance.missingNode() : MAPPER.readTree(body);
+    } catch (IOException e) {
+      throw new CompletionException(new InvalidResponseException(String.format("%s returned an invalid response",
+        response.request()), e));
+    }
+  }
+
+  private static HttpStatusException statusException(HttpResponse<?> response) {
+    return RequestPolicy.statusException(response.request().toString(), response.statusCode(),
+      response.headers().firstValue("Retry-After").orElse(null));
+  }
+
+  /**
+   * Run the call, retrying transient failures after the same jittered backoff as {@link Retry#retry}.
+   */
+  private static <T> CompletableFuture<T> retry(Exchange exchange, String description, int attempts,
+                                                boolean idempotent, int attempt, Supplier<CompletableFuture<T>> call) {
+    return call.get().exceptionallyCompose(error -> {
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (attempt >= attempts || exchange.cancelled || !(cause instanceof Exception e) ||
+        !Retry.isTransient(e, idempotent)) {
+        return CompletableFuture.failedFuture(cause);
+      }
+      long delay = Retry.delay(attempt, e);
+      log.debug("{} failed ({}), retrying in {}ms.", description, cause.getMessage(), delay);
+      Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+      return CompletableFuture.runAsync(() -> { }, delayed)
+        .thenCompose(ignored -> retry(exchange, description, attempts, idempotent, attempt + 1, call));
+    });
+  }
+
+  /**
+   * Abort the request in flight if the returned future gets cancelled.
+   */
+  private static <T> CompletableFuture<T> cancellable(Exchange exchange, CompletableFuture<T> future) {
+    future.whenComplete((result, error) -> {
+      if (future.isCancelled()) {
+        exchange.cancel();
+      }
+    });
+    return future;
+  }
+
+}
@@ -0,0 +1,284 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only journal of the entities migrated so far, one line per saved entity: the record type, the old id and
+ * the new id. Records are written to the file right away and synced to disk in batches, so an interrupted migration
+ * can be resumed without migrating entities again. A completed run additionally records the time of the source when
+ * the run started as a watermark, so later incremental runs only need to migrate entities modified after that. Using
+ * the start time instead of the newest modification time seen ensures that entities modified while the run was
+ * reading the source are migrated again by the next run.
+ */
+@Log4j2
+public class CheckpointJournal implements Closeable {
+
+  public static final char LAYER = 'L';
+
+  public static final char APPLICATION = 'A';
+
+  public static final char WATERMARK = 'M';
+
+  private static final int SYNC_RECORDS = 100;
+
+  private static final long SYNC_MILLIS = 1000;
+
+  /**
+   * Subtracted from the start time of a run, to cover the precision of the source time and differences between the
+   * clock of the source and the clock setting the modification times.
+   */
+  public static final Duration WATERMARK_MARGIN = Duration.ofMinutes(5);
+
+  private final Path file;
+
+  private final Map<Integer, Integer> layers = new ConcurrentHashMap<>();
+
+  private final Map<Integer, Integer> applications = new ConcurrentHashMap<>();
+
+  private final Map<Integer, List<Integer>> held = new HashMap<>();
+
+  private final FileChannel channel;
+
+  private final boolean incremental;
+
+  private Instant watermark;
+
+  private Instant start;
+
+  private boolean complete = true;
+
+  private int unsynced = 0;
+
+  private long lastSync = System.currentTimeMillis();
+
+  /**
+   * Open a journal.
+   *
+   * @param file   the journal file
+   * @param resume if true, the records of an existing journal are loaded and new records are appended. Otherwise, an
+   *               existing journal is truncated.
+   */
+  public CheckpointJournal(Path file, boolean resume) throws IOException {
+    this(file, resume, false);
+  }
+
+  /**
+   * Open a journal.
+   *
+   * @param file        the journal file
+   * @param resume      if true, the records of an existing journal are loaded and new records are appended.
+   *                    Otherwise, an existing journal is truncated.
+   * @param incremental if true, the existing journal is loaded and recorded entities modified since the last completed
+   *                    run need to be migrated again
+   */
+  public CheckpointJournal(Path file, boolean resume, boolean incremental) throws IOException {
+    this.file = file;
+    this.incremental = incremental;
+    resume = resume || incremental;
+    if (resume && Files.exists(file)) {
+      load();
+      log.info("Resuming after {} layers and {} applications, watermark of the last completed run is {}.",
+        layers.size(), applications.size(), watermark);
+    }
+    channel = FileChannel.open(file, CREATE, WRITE, resume ? APPEND : TRUNCATE_EXISTING);
+  }
+
+  private void load() throws IOException {
+    String content = Files.readString(file, UTF_8);
+    // ignore a partially written last record
+    int end = content.lastIndexOf('\n') + 1;
+    for (String line : content.substring(0, end).split("\n")) {
+      String[] parts = line.split(" ");
+      if (parts.length == 2 && parts[0].charAt(0) == WATERMARK) {
+        watermark = Instant.parse(parts[1]);
+      } else if (parts.length == 3) {
+        Map<Integer, Integer> map = parts[0].charAt(0) == LAYER ? layers : applications;
+        map.put(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+      }
+    }
+    if (end < content.length()) {
+      try (FileChannel truncate = FileChannel.open(file, WRITE)) {
+        truncate.truncate(content.substring(0, end).getBytes(UTF_8).length);
+      }
+    }
+  }
+
+  /**
+   * @return the old to new ids of all layers recorded so far
+   */
+  public Map<Integer, Integer> getLayers() {
+    return Collections.unmodifiableMap(layers);
+  }
+
+  /**
+   * @param oldId the id of the source application
+   * @return the id of the migrated application or null, if it has not been migrated yet
+   */
+  public Integer getApplication(int oldId) {
+    return applications.get(oldId);
+  }
+
+  /**
+   * @return the start time of the last completed run (minus the margin), or null
+   */
+  public Instant getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * Check whether a source entity needs to be migrated in this run. Entities that have not been migrated yet always
+   * need to be migrated. Already migrated ones only need to be migrated again in incremental mode, if they have been
+   * modified after the watermark. Entities without a modification time are considered modified.
+   *
+   * @param migratedId the id of the migrated entity, or null if it has not been migrated yet
+   * @param entity     the source entity
+   * @return true if the entity needs to be migrated
+   */
+  public boolean needsMigration(Integer migratedId, JsonNode entity) {
+    if (migratedId == null) {
+      return true;
+    }
+    Instant modified = null;
+    if (entity.hasNonNull("modified")) {
+      try {
+        modified = OffsetDateTime.parse(entity.get("modified").asText()).toInstant();
+      } catch (DateTimeParseException e) {
+        log.debug("Unable to parse modification time {}.", entity.get("modified"));
+      }
+    }
+    return incremental && (watermark == null || modified == null || modified.isAfter(watermark));
+  }
+
+  /**
+   * Record a migrated layer. If the new layer is {@link #holdLayer(int) held}, the record is only written once the
+   * layer is released.
+   *
+   * @param oldId the id of the source layer
+   * @param newId the id of the migrated layer
+   */
+  public synchronized void recordLayer(int oldId, int newId) throws IOException {
+    List<Integer> waiting = held.get(newId);
+    if (waiting != null) {
+      waiting.add(oldId);
+    } else if (!Integer.valueOf(newId).equals(layers.put(oldId, newId))) {
+      append(String.format("%s %s %s%n", LAYER, oldId, newId));
+    }
+  }
+
+  /**
+   * Hold back the records of a new layer until a further step, e.g. making it public, succeeded. If that step fails,
+   * the layer is not recorded and a resumed run migrates it again.
+   *
+   * @param newId the id of the migrated layer
+   */
+  public synchronized void holdLayer(int newId) {
+    held.putIfAbsent(newId, new ArrayList<>());
+  }
+
+  /**
+   * Write the records held back for a layer.
+   *
+   * @param newId the id of the migrated layer
+   */
+  public synchronized void releaseLayer(int newId) throws IOException {
+    List<Integer> waiting = held.remove(newId);
+    if (waiting != null) {
+      for (int oldId : waiting) {
+        recordLayer(oldId, newId);
+      }
+    }
+  }
+
+  public void recordApplication(int oldId, int newId) throws IOException {
+    if (!Integer.valueOf(newId).equals(applications.put(oldId, newId))) {
+      append(String.format("%s %s %s%n", APPLICATION, oldId, newId));
+    }
+  }
+
+  /**
+   * Record the time of the source before this run reads any entity. It becomes the new watermark if the run completes.
+   *
+   * @param sourceTime the time of the source, or null if it is unknown
+   */
+  public synchronized void start(Instant sourceTime) {
+    start = sourceTime == null ? null : sourceTime.minus(WATERMARK_MARGIN);
+  }
+
+  /**
+   * Mark this run as incomplete, e.g. because some entities failed to migrate. The watermark will not be advanced then.
+   */
+  public synchronized void markIncomplete() {
+    complete = false;
+  }
+
+  /**
+   * Record the start time of this run as the new watermark, unless the run has been marked as incomplete or its start
+   * time is unknown.
+   */
+  public synchronized void commit() throws IOException {
+    if (!complete) {
+      log.warn("Not all entities have been migrated, keeping the previous watermark {}.", watermark);
+      return;
+    }
+    if (start == null) {
+      log.warn("The time of the source is unknown, keeping the previous watermark {}.", watermark);
+      return;
+    }
+    if (watermark == null || start.isAfter(watermark)) {
+      watermark = start;
+      append(String.format("%s %s%n", WATERMARK, watermark));
+      sync();
+    }
+  }
+
+  private synchronized void append(String record) throws IOException {
+    ByteBuffer buffer = UTF_8.encode(record);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    if (++unsynced >= SYNC_RECORDS || System.currentTimeMillis() - lastSync >= SYNC_MILLIS) {
+      sync();
+    }
+  }
+
+  private synchronized void sync() throws IOException {
+    channel.force(false);
+    unsynced = 0;
+    lastSync = System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!held.isEmpty()) {
+      log.warn("Not recording layers {}, they could not be completed.", held.keySet());
+    }
+    sync();
+    channel.close();
+    log.info("Recorded {} layers and {} applications in {}.", layers.size(), applications.size(), file);
+  }
+
+}
@@ -0,0 +1,66 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Saves each distinct payload only once. Payloads are identified by the hash of their canonical form (see
+ * {@link TargetIndex#hash(JsonNode)}), so the order of fields and the id don't matter. The first occurrence of a
+ * payload is saved, later occurrences get its id, waiting for it if it is still being saved concurrently.
+ */
+@Log4j2
+public class Deduplicator {
+
+  private final String entity;
+
+  private final Map<String, CompletableFuture<Integer>> ids = new ConcurrentHashMap<>();
+
+  /**
+   * @param entity the entity type used for logging and metrics, e.g. 'layer'
+   */
+  public Deduplicator(String entity) {
+    this.entity = entity;
+  }
+
+  /**
+   * Save the payload unless an identical one has already been saved.
+   *
+   * @param payload the payload
+   * @param save    saves the payload and returns the new id
+   * @return the id of the saved payload or of the identical one saved before
+   */
+  public int save(JsonNode payload, Callable<Integer> save) throws Exception {
+    String hash = TargetIndex.hash(payload);
+    while (true) {
+      CompletableFuture<Integer> own = new CompletableFuture<>();
+      CompletableFuture<Integer> first = ids.putIfAbsent(hash, own);
+      if (first == null) {
+        try {
+          int id = save.call();
+          own.complete(id);
+          return id;
+        } catch (Exception e) {
+          // let the next occurrence try again
+          ids.remove(hash, own);
+          own.completeExceptionally(e);
+          throw e;
+        }
+      }
+      try {
+        int id = first.get();
+        log.info("Using {} {} for a duplicate.", entity, id);
+        Metrics.increment(Metrics.ENTITIES, "entity", entity, "action", "deduplicated");
+        return id;
+      } catch (ExecutionException e) {
+        log.debug("Saving the first occurrence of a duplicate {} failed, trying again.", entity);
+      }
+    }
+  }
+
+}
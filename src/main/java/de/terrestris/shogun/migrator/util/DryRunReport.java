@@ -0,0 +1,102 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects what a migration would have sent to the target during a dry run: the number and sizes of the payloads per
+ * entity type, layer types that can't be mapped, layer ids referenced by applications that don't exist and the time
+ * spent in each phase.
+ */
+@Log4j2
+public class DryRunReport {
+
+  private static class Payloads {
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  }
+
+  private final Map<String, Payloads> payloads = new ConcurrentSkipListMap<>();
+
+  private final Map<String, Long> phases = new ConcurrentHashMap<>();
+
+  private final Map<String, AtomicInteger> unmappableTypes = new ConcurrentHashMap<>();
+
+  private final Set<Integer> danglingLayerIds = ConcurrentHashMap.newKeySet();
+
+  private final AtomicInteger ids = new AtomicInteger();
+
+  /**
+   * Record a payload that would have been sent.
+   *
+   * @param entity the entity type, e.g. 'layer'
+   * @param bytes  the payload size
+   * @return a fake id for the entity
+   */
+  public int recordPayload(String entity, long bytes) {
+    Payloads stats = payloads.computeIfAbsent(entity, key -> new Payloads());
+    stats.count.increment();
+    stats.bytes.add(bytes);
+    stats.max.accumulate(bytes);
+    return ids.incrementAndGet();
+  }
+
+  /**
+   * @param entity the entity type, e.g. 'layer'
+   * @param millis the time it took to migrate all entities of the type
+   */
+  public void recordPhase(String entity, long millis) {
+    phases.merge(entity, millis, Long::sum);
+  }
+
+  /**
+   * @param type a source layer type that can't be migrated
+   */
+  public void recordUnmappableType(String type) {
+    unmappableTypes.computeIfAbsent(type, key -> new AtomicInteger()).incrementAndGet();
+  }
+
+  /**
+   * @param id the id of a layer referenced by an application, which has not been migrated
+   */
+  public void recordDanglingLayerId(int id) {
+    danglingLayerIds.add(id);
+  }
+
+  /**
+   * Log the report.
+   */
+  public void log() {
+    log.info("Dry run report:");
+    payloads.forEach((entity, stats) -> {
+      long count = stats.count.sum();
+      long millis = phases.getOrDefault(entity, 0L);
+      log.info("  {}: {} payloads, {} bytes in total, {} bytes max, {} bytes on average, {} ms ({} per second)",
+        entity, count, stats.bytes.sum(), stats.max.get(), count == 0 ? 0 : stats.bytes.sum() / count, millis,
+        millis == 0 ? "-" : String.format("%.1f", count * 1000.0 / millis));
+    });
+    if (!unmappableTypes.isEmpty()) {
+      Map<String, Integer> types = new TreeMap<>();
+      unmappableTypes.forEach((type, count) -> types.put(type, count.get()));
+      log.warn("  unmappable layer types: {}", types);
+    }
+    if (!danglingLayerIds.isEmpty()) {
+      log.warn("  dangling layer ids in layer trees: {}", new TreeSet<>(danglingLayerIds));
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses request bodies and decompresses response bodies with gzip while they are streamed, counting the bytes on
+ * the wire and the decoded bytes in the {@value #BYTES} metric.
+ */
+@Log4j2
+public class GzipCodec {
+
+  /**
+   * The counter of HTTP body bytes by direction ('sent' or 'received') and form ('wire' or 'decoded').
+   */
+  public static final String BYTES = "http_body_bytes";
+
+  public static final String GZIP = "gzip";
+
+  private GzipCodec() {
+    // prevent instantiation
+  }
+
+  /**
+   * Wrap a request entity so it is gzip compressed while being sent.
+   *
+   * @param entity the entity
+   * @return the compressing entity
+   */
+  public static HttpEntity compress(HttpEntity entity) {
+    return new HttpEntityWrapper(entity) {
+      @Override
+      public Header getContentEncoding() {
+        return new BasicHeader("Content-Encoding", GZIP);
+      }
+
+      @Override
+      public long getContentLength() {
+        return -1;
+      }
+
+      @Override
+      public boolean isChunked() {
+        return true;
+      }
+
+      @Override
+      public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        CountingOutputStream wire = new CountingOutputStream(out);
+        GZIPOutputStream gzip = new GZIPOutputStream(wire, 8192);
+        // the JSON generator closes its target, but the gzip stream still has to be finished
+        CountingOutputStream decoded = new CountingOutputStream(CloseShieldOutputStream.wrap(gzip));
+        super.writeTo(decoded);
+        gzip.finish();
+        Metrics.add(BYTES, wire.getByteCount(), "direction", "sent", "form", "wire");
+        Metrics.add(BYTES, decoded.getByteCount(), "direction", "sent", "form", "decoded");
+      }
+    };
+  }
+
+  /**
+   * Count the bytes of a request entity that is sent as is.
+   *
+   * @param entity the entity
+   * @return the counting entity
+   */
+  public static HttpEntity count(HttpEntity entity) {
+    return new HttpEntityWrapper(entity) {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        // the connection's stream is closed by the client
+        CountingOutputStream wire = new CountingOutputStream(CloseShieldOutputStream.wrap(out));
+        super.writeTo(wire);
+        Metrics.add(BYTES, wire.getByteCount(), "direction", "sent", "form", "wire");
+        Metrics.add(BYTES, wire.getByteCount(), "direction", "sent", "form", "decoded");
+      }
+    };
+  }
+
+  /**
+   * Wrap a response entity so it is decompressed while being read if it is gzip encoded, and optionally throttled.
+   *
+   * @param entity   the entity
+   * @param byteRate limits the rate of bytes read from the wire, or null
+   * @return the decoding entity
+   */
+  public static HttpEntity decode(HttpEntity entity, TokenBucket byteRate) {
+    Header encoding = entity.getContentEncoding();
+    boolean gzip = encoding != null && GZIP.equalsIgnoreCase(encoding.getValue());
+    return new HttpEntityWrapper(entity) {
+
+      private InputStream content;
+
+      @Override
+      public Header getContentEncoding() {
+        return gzip ? null : super.getContentEncoding();
+      }
+
+      @Override
+      public long getContentLength() {
+        return gzip ? -1 : super.getContentLength();
+      }
+
+      @Override
+      public synchronized InputStream getContent() throws IOException {
+        // the stream is created once, so consuming the entity closes the stream that has been read from
+        if (content == null) {
+          InputStream in = super.getContent();
+          if (byteRate != null) {
+            in = byteRate.throttle(in);
+          }
+          content = gzip ? counting(new GZIPInputStream(counting(in, "wire")), "decoded") :
+            counting(in, "wire", "decoded");
+        }
+        return content;
+      }
+
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        try (InputStream in = getContent()) {
+          in.transferTo(out);
+        }
+      }
+    };
+  }
+
+  /**
+   * Compress a request body that is sent as a whole, e.g. by the asynchronous client.
+   *
+   * @param body the body
+   * @return the compressed body
+   */
+  public static byte[] compress(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(body);
+    } catch (IOException e) {
+      // not thrown by byte array streams
+      throw new MigrationException(e);
+    }
+    Metrics.add(BYTES, out.size(), "direction", "sent", "form", "wire");
+    Metrics.add(BYTES, body.length, "direction", "sent", "form", "decoded");
+    return out.toByteArray();
+  }
+
+  /**
+   * Count the bytes of a request body that is sent as a whole and as is.
+   *
+   * @param body the body
+   * @return the body
+   */
+  public static byte[] count(byte[] body) {
+    Metrics.add(BYTES, body.length, "direction", "sent", "form", "wire");
+    Metrics.add(BYTES, body.length, "direction", "sent", "form", "decoded");
+    return body;
+  }
+
+  /**
+   * Decompress a response body that has been read as a whole if it is gzip encoded.
+   *
+   * @param body     the body as received
+   * @param encoding the content encoding of the response, or null
+   * @return the decoded body
+   */
+  public static byte[] decode(byte[] body, String encoding) throws IOException {
+    byte[] decoded = body;
+    if (GZIP.equalsIgnoreCase(encoding)) {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+        decoded = in.readAllBytes();
+      }
+    }
+    Metrics.add(BYTES, body.length, "direction", "received", "form", "wire");
+    Metrics.add(BYTES, decoded.length, "direction", "received", "form", "decoded");
+    return decoded;
+  }
+
+  /**
+   * Log the number of bytes sent and received and how many of them compression saved.
+   */
+  public static void logStats() {
+    for (String direction : new String[] {"sent", "received"}) {
+      long wire = Metrics.value(BYTES, "direction", direction, "form", "wire");
+      long decoded = Metrics.value(BYTES, "direction", direction, "form", "decoded");
+      if (decoded > 0) {
+        log.info("{} {} bytes of HTTP bodies as {} bytes, compression saved {}%.", direction.equals("sent") ? "Sent" :
+          "Received", decoded, wire, Math.round(100.0 * (decoded - wire) / decoded));
+      }
+    }
+  }
+
+  /**
+   * Count the bytes read from a stream and record them once the stream is closed.
+   *
+   * @param in    the stream
+   * @param forms the forms to record the bytes as, uncompressed bytes are both on the wire and decoded
+   * @return the counting stream
+   */
+  private static InputStream counting(InputStream in, String... forms) throws IOException {
+    BoundedInputStream counting = BoundedInputStream.builder().setInputStream(in).get();
+    return new FilterInputStream(counting) {
+
+      private boolean closed = false;
+
+      @Override
+      public void close() throws IOException {
+        super.close();
+        if (!closed) {
+          closed = true;
+          for (String form : forms) {
+            Metrics.add(BYTES, counting.getCount(), "direction", "received", "form", form);
+          }
+        }
+      }
+    };
+  }
+
+}
@@ -0,0 +1,163 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.http.HttpClient;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled keep-alive HTTP client for a single host. One instance is shared by all requests against the host during a
+ * migration run, so TCP and TLS handshakes are only paid once per pooled connection.
+ */
+@Log4j2
+public class HostClient implements Closeable {
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+  public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(1);
+
+  private static final X509ExtendedTrustManager TRUST_ALL = new X509ExtendedTrustManager() {
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+      // trust all
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) {
+      // trust all
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+      // trust all
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+      // trust all, without verifying the host name
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+      // trust all
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+      // trust all, without verifying the host name
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+  };
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+
+  @Getter
+  private final CloseableHttpClient client;
+
+  /**
+   * Create a new pooled client with the default timeout.
+   *
+   * @param maxConnections the maximum number of connections per route (and in total)
+   */
+  public HostClient(int maxConnections) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    this(maxConnections, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Create a new pooled client.
+   *
+   * @param maxConnections the maximum number of connections per route (and in total)
+   * @param timeout        the timeout for establishing a connection, for waiting for a pooled connection and for
+   *                       waiting for data of a response, so a stalled host fails instead of blocking forever
+   */
+  public HostClient(int maxConnections, Duration timeout) throws KeyStoreException, NoSuchAlgorithmException,
+    KeyManagementException {
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+      .register("http", PlainConnectionSocketFactory.getSocketFactory())
+      .register("https", new SSLConnectionSocketFactory(trustAll(), NoopHostnameVerifier.INSTANCE))
+      .build();
+    connectionManager = new PoolingHttpClientConnectionManager(registry);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setValidateAfterInactivity(2000);
+    int millis = (int) Math.min(Integer.MAX_VALUE, timeout.toMillis());
+    RequestConfig config = RequestConfig.custom()
+      .setConnectTimeout(millis)
+      .setConnectionRequestTimeout(millis)
+      .setSocketTimeout(millis)
+      .build();
+    client = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setDefaultRequestConfig(config)
+      .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+      .evictExpiredConnections()
+      .evictIdleConnections(30, TimeUnit.SECONDS)
+      // see GzipCodec, which also counts the bytes on the wire
+      .disableContentCompression()
+      .build();
+  }
+
+  /**
+   * Create an asynchronous client, which multiplexes requests over HTTP/2 connections if the host supports it. Like
+   * the pooled client it trusts all certificates and does not verify host names.
+   *
+   * @param connectTimeout the connect timeout
+   * @return the client
+   */
+  public static HttpClient createAsyncClient(Duration connectTimeout) throws KeyStoreException, NoSuchAlgorithmException,
+    KeyManagementException {
+    return HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .sslContext(trustAll())
+      .connectTimeout(connectTimeout)
+      .build();
+  }
+
+  /**
+   * Create the TLS context of both clients, which trusts all certificates. The pooled client skips the host name
+   * verification with the NoopHostnameVerifier. The JDK client has no such option, it leaves the verification to the
+   * trust manager if that is an X509ExtendedTrustManager, so the one used here ignores the host name as well.
+   *
+   * @return the context
+   */
+  private static SSLContext trustAll() throws NoSuchAlgorithmException, KeyManagementException {
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, new TrustManager[] {TRUST_ALL}, null);
+    return context;
+  }
+
+  @Override
+  public void close() throws IOException {
+    log.debug("Closing connection pool: {}", connectionManager.getTotalStats());
+    client.close();
+  }
+
+}
@@ -0,0 +1,77 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Thrown when a host answers with an unexpected status code.
+ */
+@Getter
+public class HttpStatusException extends IOException {
+
+  private final int statusCode;
+
+  /**
+   * The delay requested by the Retry-After header in milliseconds, or null if the host didn't send one.
+   */
+  private final Long retryAfterMillis;
+
+  public HttpStatusException(String request, int statusCode) {
+    this(request, statusCode, null);
+  }
+
+  public HttpStatusException(String request, int statusCode, Long retryAfterMillis) {
+    super(String.format("%s failed with status code %s", request, statusCode));
+    this.statusCode = statusCode;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * @return true if repeating the request may succeed
+   */
+  public boolean isTransient() {
+    return isTransient(statusCode);
+  }
+
+  /**
+   * @return true if the host signalled that it did not process the request, so even a request that is not idempotent
+   * can be repeated safely
+   */
+  public boolean isUnprocessed() {
+    return statusCode == 429 || (statusCode == 503 && retryAfterMillis != null);
+  }
+
+  /**
+   * @param statusCode an HTTP status code
+   * @return true if repeating a request that got this status code may succeed
+   */
+  public static boolean isTransient(int statusCode) {
+    return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+  }
+
+  /**
+   * @param value the value of a Retry-After header (seconds or an HTTP date), may be null
+   * @return the delay in milliseconds, or null if the value is missing or invalid
+   */
+  public static Long parseRetryAfter(String value) {
+    if (value == null || value.isBlank()) {
+      return null;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value.strip())) * 1000;
+    } catch (NumberFormatException e) {
+      try {
+        ZonedDateTime date = ZonedDateTime.parse(value.strip(), DateTimeFormatter.RFC_1123_DATE_TIME);
+        return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+      } catch (DateTimeParseException ignored) {
+        return null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,19 @@
+package de.terrestris.shogun.migrator.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a host answers with a response that can't be used, e.g. one that can't be parsed or lacks the id of a
+ * saved entity. Repeating the request won't help.
+ */
+public class InvalidResponseException extends IOException {
+
+  public InvalidResponseException(String message) {
+    super(message);
+  }
+
+  public InvalidResponseException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+}
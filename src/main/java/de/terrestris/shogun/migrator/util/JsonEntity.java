@@ -0,0 +1,69 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.apache.http.entity.ContentType.APPLICATION_JSON;
+
+/**
+ * A request entity that generates its JSON content directly into the connection's output stream.
+ */
+public class JsonEntity extends AbstractHttpEntity {
+
+  @FunctionalInterface
+  public interface JsonWriter {
+
+    void write(JsonGenerator gen) throws IOException;
+
+  }
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final JsonWriter writer;
+
+  public JsonEntity(JsonWriter writer) {
+    this.writer = writer;
+    setContentType(APPLICATION_JSON.toString());
+    setChunked(true);
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    try (JsonGenerator gen = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      // the connection's stream is closed by the client
+      gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      writer.write(gen);
+    }
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+}
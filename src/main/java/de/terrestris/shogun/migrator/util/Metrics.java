@@ -0,0 +1,262 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A minimal registry of counters and latency histograms for the migration, e.g. per HTTP operation and status code or
+ * per entity type. The metrics can be written as Prometheus text or JSON and served on a local HTTP endpoint.
+ */
+@Log4j2
+public class Metrics {
+
+  public static final String PREFIX = "shogun_migrator_";
+
+  /**
+   * The counter of migrated entities by entity type and action, e.g. 'created' or 'skipped'.
+   */
+  public static final String ENTITIES = "entities";
+
+  /**
+   * The histogram of the time spent transforming entities, by step.
+   */
+  public static final String TRANSFORMS = "transform_duration_seconds";
+
+  /**
+   * The histogram bucket bounds in seconds.
+   */
+  private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+  /**
+   * A metric name and its label names and values, alternating.
+   */
+  private record Key(String name, List<String> labels) {
+
+    private String labelString(String extra) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i + 1 < labels.size(); i += 2) {
+        builder.append(builder.isEmpty() ? "" : ",").append(labels.get(i)).append("=\"")
+          .append(labels.get(i + 1).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+      if (extra != null) {
+        builder.append(builder.isEmpty() ? "" : ",").append(extra);
+      }
+      return builder.isEmpty() ? "" : "{" + builder + "}";
+    }
+
+  }
+
+  /**
+   * The order of the exported metrics, so the series of a metric are written together. Only used when exporting, the
+   * registry itself is a hash map so recording a value does not format the labels.
+   */
+  private static final Comparator<Key> ORDER = Comparator.comparing(Key::name)
+    .thenComparing(key -> key.labelString(null));
+
+  private static class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+
+    private final LongAdder count = new LongAdder();
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; ++i) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    private void observe(double seconds) {
+      for (int i = 0; i < BUCKETS.length; ++i) {
+        if (seconds <= BUCKETS[i]) {
+          buckets[i].increment();
+          break;
+        }
+      }
+      count.increment();
+      sum.add(seconds);
+    }
+
+  }
+
+  private static final Map<Key, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+
+  private static final Map<Key, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+  private Metrics() {
+    // prevent instantiation
+  }
+
+  /**
+   * Increment a counter.
+   *
+   * @param name   the counter name without prefix and '_total' suffix
+   * @param labels the label names and values, alternating
+   */
+  public static void increment(String name, String... labels) {
+    add(name, 1, labels);
+  }
+
+  /**
+   * Add an amount to a counter.
+   *
+   * @param name   the counter name without prefix and '_total' suffix
+   * @param amount the amount
+   * @param labels the label names and values, alternating
+   */
+  public static void add(String name, long amount, String... labels) {
+    COUNTERS.computeIfAbsent(new Key(name, List.of(labels)), key -> new LongAdder()).add(amount);
+  }
+
+  /**
+   * @param name   the counter name without prefix and '_total' suffix
+   * @param labels the label names and values, alternating
+   * @return the value of the counter, 0 if it doesn't exist
+   */
+  public static long value(String name, String... labels) {
+    LongAdder counter = COUNTERS.get(new Key(name, List.of(labels)));
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * Record the time passed since start in a histogram.
+   *
+   * @param name   the histogram name without prefix, e.g. 'http_request_duration_seconds'
+   * @param start  the start as returned by {@link System#nanoTime()}
+   * @param labels the label names and values, alternating
+   */
+  public static void observe(String name, long start, String... labels) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    HISTOGRAMS.computeIfAbsent(new Key(name, List.of(labels)), key -> new Histogram()).observe(seconds);
+  }
+
+  /**
+   * @return the metrics in the Prometheus text format
+   */
+  public static String toPrometheus() {
+    StringBuilder builder = new StringBuilder();
+    String type = null;
+    for (Map.Entry<Key, LongAdder> entry : sorted(COUNTERS)) {
+      String name = PREFIX + entry.getKey().name() + "_total";
+      if (!name.equals(type)) {
+        builder.append("# TYPE ").append(name).append(" counter\n");
+        type = name;
+      }
+      builder.append(name).append(entry.getKey().labelString(null)).append(' ').append(entry.getValue().sum()).append('\n');
+    }
+    for (Map.Entry<Key, Histogram> entry : sorted(HISTOGRAMS)) {
+      Key key = entry.getKey();
+      Histogram histogram = entry.getValue();
+      String name = PREFIX + key.name();
+      if (!name.equals(type)) {
+        builder.append("# TYPE ").append(name).append(" histogram\n");
+        type = name;
+      }
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS.length; ++i) {
+        cumulative += histogram.buckets[i].sum();
+        builder.append(name).append("_bucket").append(key.labelString("le=\"" + BUCKETS[i] + "\"")).append(' ')
+          .append(cumulative).append('\n');
+      }
+      builder.append(name).append("_bucket").append(key.labelString("le=\"+Inf\"")).append(' ')
+        .append(histogram.count.sum()).append('\n');
+      builder.append(name).append("_sum").append(key.labelString(null)).append(' ').append(histogram.sum.sum()).append('\n');
+      builder.append(name).append("_count").append(key.labelString(null)).append(' ').append(histogram.count.sum()).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * @return the metrics as JSON, histogram buckets are not cumulative
+   */
+  public static String toJson() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode root = mapper.createObjectNode();
+    ArrayNode counters = root.putArray("counters");
+    for (Map.Entry<Key, LongAdder> entry : sorted(COUNTERS)) {
+      labels(counters.addObject(), entry.getKey()).put("value", entry.getValue().sum());
+    }
+    ArrayNode histograms = root.putArray("histograms");
+    for (Map.Entry<Key, Histogram> entry : sorted(HISTOGRAMS)) {
+      Histogram histogram = entry.getValue();
+      ObjectNode node = labels(histograms.addObject(), entry.getKey());
+      node.put("count", histogram.count.sum());
+      node.put("sum", histogram.sum.sum());
+      ObjectNode buckets = node.putObject("buckets");
+      for (int i = 0; i < BUCKETS.length; ++i) {
+        buckets.put(String.valueOf(BUCKETS[i]), histogram.buckets[i].sum());
+      }
+    }
+    return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(root);
+  }
+
+  private static <V> List<Map.Entry<Key, V>> sorted(Map<Key, V> metrics) {
+    return metrics.entrySet().stream().sorted(Map.Entry.comparingByKey(ORDER)).toList();
+  }
+
+  private static ObjectNode labels(ObjectNode node, Key key) {
+    node.put("name", key.name());
+    ObjectNode labels = node.putObject("labels");
+    for (int i = 0; i + 1 < key.labels().size(); i += 2) {
+      labels.put(key.labels().get(i), key.labels().get(i + 1));
+    }
+    return node;
+  }
+
+  /**
+   * Write the metrics to prefix.prom in the Prometheus text format and to prefix.json.
+   *
+   * @param prefix the file name prefix
+   */
+  public static void write(String prefix) throws IOException {
+    Files.writeString(Path.of(prefix + ".prom"), toPrometheus(), UTF_8);
+    Files.writeString(Path.of(prefix + ".json"), toJson(), UTF_8);
+    log.info("Wrote metrics to {}.prom and {}.json.", prefix, prefix);
+  }
+
+  /**
+   * Serve the metrics on localhost, as Prometheus text on /metrics and as JSON on /metrics.json.
+   *
+   * @param port the port
+   * @return the server, stop it when done
+   */
+  public static HttpServer serve(int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    server.createContext("/metrics", exchange -> {
+      boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+      respond(exchange, json ? toJson() : toPrometheus(), json ? "application/json" : "text/plain; version=0.0.4");
+    });
+    server.start();
+    log.info("Serving metrics on http://127.0.0.1:{}/metrics", port);
+    return server;
+  }
+
+  private static void respond(HttpExchange exchange, String body, String contentType) throws IOException {
+    byte[] bs = body.getBytes(UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, bs.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bs);
+    }
+  }
+
+}
@@ -6,4 +6,8 @@ public class MigrationException extends RuntimeException {
     super("Unable to migrate", cause);
   }
 
+  public MigrationException(String message) {
+    super(message);
+  }
+
 }
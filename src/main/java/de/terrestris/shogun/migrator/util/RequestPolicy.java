@@ -0,0 +1,106 @@
+package de.terrestris.shogun.migrator.util;
+
+import de.terrestris.shogun.migrator.model.HostDto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The request and response handling shared by {@link ApiUtil} and {@link AsyncApiUtil}, so both HTTP clients
+ * authenticate, renew rejected tokens, judge status codes and name their writes the same way.
+ */
+final class RequestPolicy {
+
+  static final String AUTHORIZATION = "Authorization";
+
+  private static final String BEARER = "Bearer ";
+
+  private RequestPolicy() {
+    // prevent instantiation
+  }
+
+  /**
+   * @param host the host
+   * @return the authorization header for the access token of the host, refreshing the token if needed
+   */
+  static String bearer(HostDto host) throws IOException {
+    if (host.getTokenManager() == null) {
+      return BEARER + host.getToken();
+    }
+    try {
+      return BEARER + host.getTokenManager().getToken();
+    } catch (GeneralSecurityException e) {
+      throw new MigrationException(e);
+    }
+  }
+
+  /**
+   * @param host the host
+   * @return the basic authorization header for the credentials of the host, as used by shogun2
+   */
+  static String basic(HostDto host) {
+    String credentials = host.getUsername() + ":" + host.getPassword();
+    return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8));
+  }
+
+  /**
+   * Decide whether a request has to be sent once more with a new access token. The token may have been invalidated
+   * before it expired, so a request rejected with 401 is repeated once with a renewed token.
+   *
+   * @param host          the host
+   * @param status        the status code of the response
+   * @param authorization the authorization header of the request, may be null
+   * @return the authorization header to repeat the request with, or null if the response is final
+   */
+  static String renewedAuthorization(HostDto host, int status, String authorization) throws IOException {
+    if (status != 401 || host.getTokenManager() == null || authorization == null ||
+      !authorization.startsWith(BEARER)) {
+      return null;
+    }
+    try {
+      return BEARER + host.getTokenManager().renew(authorization.substring(BEARER.length()));
+    } catch (GeneralSecurityException e) {
+      throw new MigrationException(e);
+    }
+  }
+
+  /**
+   * @param status the status code of a delete request
+   * @return true if the resource is gone, a missing resource has already been deleted
+   */
+  static boolean isDeleted(int status) {
+    return status < 400 || status == 404;
+  }
+
+  /**
+   * @param request    the request used in the message
+   * @param status     the status code
+   * @param retryAfter the value of the Retry-After header, may be null
+   * @return the exception for an unexpected status code
+   */
+  static HttpStatusException statusException(String request, int status, String retryAfter) {
+    return new HttpStatusException(request, status, HttpStatusException.parseRetryAfter(retryAfter));
+  }
+
+  /**
+   * @param entity the entity, e.g. 'layer'
+   * @param id     the id of the entity to update, or null to save a new one
+   * @return the operation the adaptive limiter tracks the latency of, e.g. 'create layers'
+   */
+  static String writeOperation(String entity, Integer id) {
+    return (id == null ? "create " : "update ") + entity + "s";
+  }
+
+  /**
+   * @param entity the entity, e.g. 'layer'
+   * @param id     the id of the entity to update, or null to save a new one
+   * @return the description of the write used for logging
+   */
+  static String writeDescription(String entity, Integer id) {
+    return id == null ? "Saving " + entity : "Updating " + entity + " " + id;
+  }
+
+}
@@ -0,0 +1,119 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.extern.log4j.Log4j2;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Repeats calls that failed with a transient error, waiting with jittered exponential backoff in between.
+ */
+@Log4j2
+public class Retry {
+
+  public static final int DEFAULT_ATTEMPTS = 3;
+
+  /**
+   * The maximum number of attempts accepted by the --retries option.
+   */
+  public static final int MAX_ATTEMPTS = 20;
+
+  private static final long BASE_DELAY_MILLIS = 500;
+
+  /**
+   * The upper bound of every delay, including the jitter and a delay requested by the host.
+   */
+  private static final long MAX_DELAY_MILLIS = 30_000;
+
+  /**
+   * The exponent at which the backoff reaches the maximum delay.
+   */
+  private static final int MAX_EXPONENT = 6;
+
+  private Retry() {
+    // prevent instantiation
+  }
+
+  /**
+   * Decide whether a failed call may be repeated. Calls that are not idempotent (like saving a new entity) are only
+   * repeated if the request provably was not processed: the connection could not be established or the host answered
+   * with 429 or 503 with a Retry-After header. Otherwise the host may have saved the entity before the response got
+   * lost, and repeating the call would save it twice.
+   *
+   * @param e          the error
+   * @param idempotent whether repeating the call has the same effect as calling it once
+   * @return true if repeating the failed call may succeed
+   */
+  public static boolean isTransient(Exception e, boolean idempotent) {
+    if (e instanceof InvalidResponseException || e instanceof JsonProcessingException) {
+      return false;
+    }
+    if (e instanceof HttpStatusException status) {
+      return idempotent ? status.isTransient() : status.isUnprocessed();
+    }
+    if (isNotConnected(e) || isNotConnected(e.getCause())) {
+      return true;
+    }
+    return idempotent && e instanceof IOException;
+  }
+
+  private static boolean isNotConnected(Throwable e) {
+    // the Apache client signals a pool or connect timeout with ConnectTimeoutException, the JDK client with
+    // HttpConnectTimeoutException
+    return e instanceof ConnectException || e instanceof ConnectTimeoutException ||
+      e instanceof HttpConnectTimeoutException;
+  }
+
+  /**
+   * @param attempt the number of the failed attempt, starting at 1
+   * @return the jittered delay before the next attempt in milliseconds
+   */
+  static long delay(int attempt) {
+    long delay = BASE_DELAY_MILLIS << Math.min(Math.max(attempt - 1, 0), MAX_EXPONENT);
+    return Math.min(MAX_DELAY_MILLIS, delay + ThreadLocalRandom.current().nextLong(delay));
+  }
+
+  /**
+   * @param attempt the number of the failed attempt, starting at 1
+   * @param e       the error
+   * @return the delay before the next attempt in milliseconds, at least the one requested by a Retry-After header (up
+   * to the maximum delay)
+   */
+  static long delay(int attempt, Exception e) {
+    long delay = delay(attempt);
+    if (e instanceof HttpStatusException status && status.getRetryAfterMillis() != null) {
+      return Math.min(MAX_DELAY_MILLIS, Math.max(delay, status.getRetryAfterMillis()));
+    }
+    return delay;
+  }
+
+  /**
+   * Run the call, retrying transient failures.
+   *
+   * @param description a description of the call used for logging
+   * @param attempts    the maximum number of attempts
+   * @param idempotent  whether repeating the call has the same effect as calling it once
+   * @param call        the call
+   * @return the result of the call
+   */
+  public static <T> T retry(String description, int attempts, boolean idempotent, Callable<T> call) throws Exception {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        return call.call();
+      } catch (Exception e) {
+        if (attempt >= attempts || !isTransient(e, idempotent)) {
+          throw e;
+        }
+        long delay = delay(attempt, e);
+        log.debug("{} failed ({}), retrying in {}ms.", description, e.getMessage(), delay);
+        Thread.sleep(delay);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,257 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import de.terrestris.shogun.migrator.model.HostDto;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static de.terrestris.shogun.migrator.util.ApiUtil.stream;
+
+/**
+ * An index of the layers and applications already present on the target, keyed by a stable identity: the name, source
+ * URL and layer names for layers and the name for applications. Each entry holds the target id and a content hash of
+ * the target entity, so migrated entities can update their counterparts and unchanged ones can be skipped.
+ * <p>
+ * Identities are not unique, e.g. application names aren't. Each target entity is handed out to one migrated entity
+ * at most, so several migrated entities never overwrite the same target entity. If several target entities share an
+ * identity, the one with the same content is used, otherwise the migrated entity can't be matched and fails.
+ */
+@Log4j2
+public class TargetIndex {
+
+  /**
+   * An indexed target entity.
+   *
+   * @param id   the target id
+   * @param hash the content hash of the target entity
+   */
+  public record Entry(int id, String hash) {
+
+    /**
+     * @param entity a migrated entity
+     * @return true if the entity has the same content as the indexed one
+     */
+    public boolean matches(JsonNode entity) {
+      return hash.equals(TargetIndex.hash(entity));
+    }
+
+  }
+
+  /**
+   * The indexed entities of one type.
+   */
+  private static final class Entities {
+
+    private final String type;
+
+    private final Function<JsonNode, String> key;
+
+    private final Map<String, List<Entry>> byKey = new HashMap<>();
+
+    private final Map<Integer, Entry> byId = new HashMap<>();
+
+    private final Set<Integer> claimed = new HashSet<>();
+
+    private Entities(String type, Function<JsonNode, String> key) {
+      this.type = type;
+      this.key = key;
+    }
+
+    private synchronized void add(JsonNode node) {
+      Entry entry = new Entry(node.get("id").intValue(), hash(node));
+      byKey.computeIfAbsent(key.apply(node), k -> new ArrayList<>()).add(entry);
+      byId.put(entry.id(), entry);
+    }
+
+    private synchronized Entry get(int id) {
+      claimed.add(id);
+      return byId.get(id);
+    }
+
+    private synchronized Entry find(JsonNode entity) {
+      List<Entry> candidates = byKey.getOrDefault(key.apply(entity), List.of()).stream()
+        .filter(entry -> !claimed.contains(entry.id()))
+        .toList();
+      Entry match = null;
+      if (candidates.size() == 1) {
+        match = candidates.get(0);
+      } else if (candidates.size() > 1) {
+        String hash = hash(entity);
+        match = candidates.stream().filter(entry -> entry.hash().equals(hash)).findFirst().orElseThrow(() ->
+          new MigrationException(String.format("The %s is ambiguous, the target %ss %s have the same identity but " +
+            "none of them has the same content.", type, type,
+            candidates.stream().map(entry -> String.valueOf(entry.id())).toList())));
+      }
+      if (match != null) {
+        claimed.add(match.id());
+      }
+      return match;
+    }
+
+    private void logAmbiguous() {
+      byKey.forEach((key, entries) -> {
+        if (entries.size() > 1) {
+          log.warn("The target {}s {} have the same identity ({}), they are matched by content.", type,
+            entries.stream().map(Entry::id).toList(), key.replace('\n', ' ').strip());
+        }
+      });
+    }
+
+  }
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /**
+   * Fields assigned by the target that are not part of the content.
+   */
+  private static final Set<String> IGNORED_FIELDS = Set.of("id", "created", "modified");
+
+  private final Entities layers = new Entities("layer", TargetIndex::layerKey);
+
+  private final Entities applications = new Entities("application", TargetIndex::applicationKey);
+
+  TargetIndex() {
+  }
+
+  /**
+   * Build the index by fetching all layers and applications of the target.
+   *
+   * @param target the target host
+   * @return the index
+   */
+  public static TargetIndex load(HostDto target) throws IOException, GeneralSecurityException {
+    TargetIndex index = new TargetIndex();
+    stream(target, "layers", true, index::addLayer);
+    stream(target, "applications", true, index::addApplication);
+    index.layers.logAmbiguous();
+    index.applications.logAmbiguous();
+    log.info("Indexed {} layers and {} applications on the target.", index.layers.byId.size(),
+      index.applications.byId.size());
+    return index;
+  }
+
+  void addLayer(JsonNode layer) {
+    layers.add(layer);
+  }
+
+  void addApplication(JsonNode application) {
+    applications.add(application);
+  }
+
+  public static String layerKey(JsonNode layer) {
+    JsonNode sourceConfig = layer.path("sourceConfig");
+    return String.join("\n", layer.path("name").asText(), sourceConfig.path("url").asText(),
+      sourceConfig.path("layerNames").asText());
+  }
+
+  public static String applicationKey(JsonNode application) {
+    return application.path("name").asText();
+  }
+
+  /**
+   * Find the target layer with the same identity and hand it out to the migrated layer.
+   *
+   * @param layer a migrated layer
+   * @return the target layer with the same identity, or null if there is none left
+   * @throws MigrationException if several target layers have the same identity and none has the same content
+   */
+  public Entry findLayer(JsonNode layer) {
+    return layers.find(layer);
+  }
+
+  /**
+   * Find the target application with the same identity and hand it out to the migrated application.
+   *
+   * @param application a migrated application
+   * @return the target application with the same identity, or null if there is none left
+   * @throws MigrationException if several target applications have the same identity and none has the same content
+   */
+  public Entry findApplication(JsonNode application) {
+    return applications.find(application);
+  }
+
+  /**
+   * @param id the id of a target layer, e.g. recorded in the journal
+   * @return the indexed target layer, or null if it doesn't exist (anymore)
+   */
+  public Entry getLayer(int id) {
+    return layers.get(id);
+  }
+
+  /**
+   * @param id the id of a target application, e.g. recorded in the journal
+   * @return the indexed target application, or null if it doesn't exist (anymore)
+   */
+  public Entry getApplication(int id) {
+    return applications.get(id);
+  }
+
+  /**
+   * Calculate a hash of the canonical form of an entity: object fields are sorted, null fields, the id and the
+   * timestamps are ignored and numbers are compared by value.
+   *
+   * @param entity the entity
+   * @return the hex encoded hash
+   */
+  public static String hash(JsonNode entity) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      try (JsonGenerator gen = JSON_FACTORY.createGenerator(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+        writeCanonical(entity, gen, true);
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new MigrationException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void writeCanonical(JsonNode node, JsonGenerator gen, boolean root) throws IOException {
+    if (node.isObject()) {
+      List<String> names = new ArrayList<>();
+      node.fieldNames().forEachRemaining(names::add);
+      names.sort(null);
+      gen.writeStartObject();
+      for (String name : names) {
+        JsonNode value = node.get(name);
+        if (value.isNull() || (root && IGNORED_FIELDS.contains(name))) {
+          continue;
+        }
+        gen.writeFieldName(name);
+        writeCanonical(value, gen, false);
+      }
+      gen.writeEndObject();
+    } else if (node.isArray()) {
+      gen.writeStartArray();
+      for (JsonNode child : node) {
+        writeCanonical(child, gen, false);
+      }
+      gen.writeEndArray();
+    } else if (node.isNumber()) {
+      gen.writeNumber(node.decimalValue().stripTrailingZeros().toPlainString());
+    } else if (node.isBoolean()) {
+      gen.writeBoolean(node.booleanValue());
+    } else {
+      gen.writeString(node.asText());
+    }
+  }
+
+}
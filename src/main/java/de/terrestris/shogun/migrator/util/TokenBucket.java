@@ -0,0 +1,103 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket limiting the rate of something, e.g. requests or bytes, to a number of permits per second. The
+ * bucket holds up to one second worth of permits, so short bursts are allowed. Callers asking for more permits than
+ * available go into debt and wait until it has been paid off, so single large acquisitions don't starve.
+ */
+@Log4j2
+public class TokenBucket {
+
+  private final String name;
+
+  private final double permitsPerSecond;
+
+  private final double capacity;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private double available;
+
+  private long lastRefill = System.nanoTime();
+
+  /**
+   * Create a full bucket.
+   *
+   * @param name             the name used for logging, e.g. 'requests'
+   * @param permitsPerSecond the rate
+   */
+  public TokenBucket(String name, double permitsPerSecond) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("The rate of " + name + " must be positive.");
+    }
+    this.name = name;
+    this.permitsPerSecond = permitsPerSecond;
+    this.capacity = Math.max(1, permitsPerSecond);
+    this.available = capacity;
+  }
+
+  /**
+   * Take permits from the bucket, waiting until they have been refilled if necessary.
+   *
+   * @param permits the number of permits
+   */
+  public void acquire(long permits) {
+    long waitNanos;
+    lock.lock();
+    try {
+      long now = System.nanoTime();
+      available = Math.min(capacity, available + (now - lastRefill) * permitsPerSecond / 1e9);
+      lastRefill = now;
+      available -= permits;
+      waitNanos = available < 0 ? (long) (-available / permitsPerSecond * 1e9) : 0;
+    } finally {
+      lock.unlock();
+    }
+    if (waitNanos > 0) {
+      log.trace("Throttling {} for {}ms.", name, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new MigrationException(e);
+      }
+    }
+  }
+
+  /**
+   * Wrap a stream so reading from it takes a permit per byte read.
+   *
+   * @param in the stream
+   * @return the throttled stream
+   */
+  public InputStream throttle(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          acquire(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+          acquire(read);
+        }
+        return read;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,118 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import de.terrestris.shogun.migrator.model.HostDto;
+import lombok.extern.log4j.Log4j2;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages the access token of a host. The token is refreshed ahead of its expiry, using the refresh token if it is
+ * still valid and the user credentials otherwise. Concurrent callers share a single refresh.
+ */
+@Log4j2
+public class TokenManager {
+
+  /**
+   * Refresh this many milliseconds before the token expires, or after 80% of the lifetime of short-lived tokens.
+   */
+  private static final long REFRESH_AHEAD_MILLIS = 30_000;
+
+  private final HostDto host;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private volatile String accessToken;
+
+  private volatile long refreshAt;
+
+  private String refreshToken;
+
+  private long refreshTokenExpiresAt;
+
+  public TokenManager(HostDto host) {
+    this.host = host;
+  }
+
+  /**
+   * Returns a valid access token, refreshing it first if it is about to expire.
+   *
+   * @return the access token
+   */
+  public String getToken() throws IOException, GeneralSecurityException {
+    String token = accessToken;
+    if (token != null && System.currentTimeMillis() < refreshAt) {
+      return token;
+    }
+    lock.lock();
+    try {
+      if (accessToken == null || System.currentTimeMillis() >= refreshAt) {
+        refresh();
+      }
+      return accessToken;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replace a token that has been rejected by the host. If another caller already replaced it, the new token is
+   * returned without refreshing again.
+   *
+   * @param rejected the rejected token
+   * @return the new access token
+   */
+  public String renew(String rejected) throws IOException, GeneralSecurityException {
+    lock.lock();
+    try {
+      if (Objects.equals(accessToken, rejected)) {
+        log.info("Access token has been rejected, fetching a new one.");
+        refresh();
+      }
+      return accessToken;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void refresh() throws IOException, GeneralSecurityException {
+    long now = System.currentTimeMillis();
+    JsonNode node = null;
+    if (refreshToken != null && now < refreshTokenExpiresAt) {
+      log.debug("Refreshing token.");
+      try {
+        node = ApiUtil.requestToken(host, List.of(
+          new BasicNameValuePair("grant_type", "refresh_token"),
+          new BasicNameValuePair("refresh_token", refreshToken),
+          new BasicNameValuePair("client_id", host.getClientId())
+        ));
+      } catch (HttpStatusException e) {
+        log.debug("Unable to refresh token: {}", e.getMessage());
+      }
+    }
+    if (node == null) {
+      log.debug("Fetching token.");
+      node = ApiUtil.requestToken(host, List.of(
+        new BasicNameValuePair("username", host.getUsername()),
+        new BasicNameValuePair("password", host.getPassword()),
+        new BasicNameValuePair("grant_type", "password"),
+        new BasicNameValuePair("client_id", host.getClientId())
+      ));
+    }
+    long lifetime = 1000 * node.path("expires_in").asLong(300);
+    // without a lifetime the refresh token is used until it is rejected
+    long refreshLifetime = 1000 * node.path("refresh_expires_in").asLong(0);
+    accessToken = node.get("access_token").asText();
+    refreshToken = node.path("refresh_token").asText(null);
+    refreshAt = now + lifetime - Math.min(REFRESH_AHEAD_MILLIS, lifetime / 5);
+    refreshTokenExpiresAt = refreshLifetime > 0 ? now + refreshLifetime - Math.min(REFRESH_AHEAD_MILLIS, refreshLifetime / 5) :
+      Long.MAX_VALUE;
+    host.setToken(accessToken);
+  }
+
+}
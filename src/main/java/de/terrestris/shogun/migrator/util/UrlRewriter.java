@@ -0,0 +1,174 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Rewrites layer URLs according to a set of rules, compiled once so that rewriting a URL takes time proportional to
+ * the URL length regardless of the number of rules. Three kinds of rules are supported:
+ * <ul>
+ *   <li>exact: replace the whole URL</li>
+ *   <li>prefix: replace the beginning of the URL, the longest matching prefix wins</li>
+ *   <li>host: replace the host (and port) of the URL, e.g. after a GeoServer moved</li>
+ * </ul>
+ * An exact rule takes precedence over a prefix rule, which takes precedence over a host rule.
+ */
+@Log4j2
+public class UrlRewriter {
+
+  public static final UrlRewriter NONE = new UrlRewriter();
+
+  private static final String DOUBLE_COLON = "::";
+
+  private static final String COMMA = ",";
+
+  private static final String SCHEME_SEPARATOR = "://";
+
+  private static class Node {
+
+    private final Map<Character, Node> children = new HashMap<>();
+
+    private String replacement;
+
+  }
+
+  private final Map<String, String> exact = new HashMap<>();
+
+  private final Node prefixes = new Node();
+
+  private final Map<String, String> hosts = new HashMap<>();
+
+  private UrlRewriter() {
+  }
+
+  /**
+   * Compile the exact replacements of the --replace-layer-url option.
+   *
+   * @param replacements replacements in the form 'AAA::BBB,CCC::DDD', may be null
+   * @return the rewriter
+   */
+  public static UrlRewriter parse(String replacements) {
+    return compile(replacements, null);
+  }
+
+  /**
+   * Compile the exact replacements of the --replace-layer-url option and the rules of a rule file. The rule file
+   * contains one rule per line: the kind ('exact', 'prefix' or 'host'), the URL, prefix or host to replace and its
+   * replacement, separated by whitespace. Empty lines and lines starting with '#' are ignored.
+   *
+   * @param replacements replacements in the form 'AAA::BBB,CCC::DDD', may be null
+   * @param ruleFile     the rule file, may be null
+   * @return the rewriter
+   */
+  public static UrlRewriter compile(String replacements, Path ruleFile) {
+    if (replacements == null && ruleFile == null) {
+      return NONE;
+    }
+    UrlRewriter rewriter = new UrlRewriter();
+    if (replacements != null) {
+      for (String replacement : replacements.split(COMMA)) {
+        String[] split = replacement.split(DOUBLE_COLON);
+        if (split.length == 2) {
+          rewriter.exact.putIfAbsent(split[0], split[1]);
+        }
+      }
+    }
+    if (ruleFile != null) {
+      List<String> lines;
+      try {
+        lines = Files.readAllLines(ruleFile, UTF_8);
+      } catch (IOException e) {
+        throw new MigrationException(e);
+      }
+      for (int i = 0; i < lines.size(); ++i) {
+        String line = lines.get(i).strip();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] rule = line.split("\\s+");
+        if (rule.length != 3) {
+          throw new MigrationException(String.format("Invalid rule in %s line %s: %s", ruleFile, i + 1, line));
+        }
+        switch (rule[0]) {
+          case "exact" -> rewriter.exact.putIfAbsent(rule[1], rule[2]);
+          case "prefix" -> rewriter.addPrefix(rule[1], rule[2]);
+          case "host" -> rewriter.hosts.putIfAbsent(rule[1], rule[2]);
+          default -> throw new MigrationException(String.format("Unknown rule kind in %s line %s: %s", ruleFile,
+            i + 1, rule[0]));
+        }
+      }
+    }
+    log.info("Compiled {} exact, {} prefix and {} host URL replacement rules.", rewriter.exact.size(),
+      rewriter.countPrefixes(rewriter.prefixes), rewriter.hosts.size());
+    return rewriter;
+  }
+
+  private void addPrefix(String prefix, String replacement) {
+    Node node = prefixes;
+    for (int i = 0; i < prefix.length(); ++i) {
+      node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+    }
+    if (node.replacement == null) {
+      node.replacement = replacement;
+    }
+  }
+
+  private int countPrefixes(Node node) {
+    int count = node.replacement == null ? 0 : 1;
+    for (Node child : node.children.values()) {
+      count += countPrefixes(child);
+    }
+    return count;
+  }
+
+  /**
+   * @param url a URL, may be null
+   * @return the rewritten URL or the URL itself, if no rule matches
+   */
+  public String rewrite(String url) {
+    if (url == null || this == NONE) {
+      return url;
+    }
+    String replacement = exact.get(url);
+    if (replacement != null) {
+      return replacement;
+    }
+    Node node = prefixes;
+    Node match = null;
+    int matchLength = 0;
+    for (int i = 0; i < url.length() && node != null; ++i) {
+      node = node.children.get(url.charAt(i));
+      if (node != null && node.replacement != null) {
+        match = node;
+        matchLength = i + 1;
+      }
+    }
+    if (match != null) {
+      return match.replacement + url.substring(matchLength);
+    }
+    if (!hosts.isEmpty()) {
+      int start = url.indexOf(SCHEME_SEPARATOR);
+      if (start > 0) {
+        start += SCHEME_SEPARATOR.length();
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+          ++end;
+        }
+        String host = hosts.get(url.substring(start, end));
+        if (host != null) {
+          return url.substring(0, start) + host + url.substring(end);
+        }
+      }
+    }
+    return url;
+  }
+
+}
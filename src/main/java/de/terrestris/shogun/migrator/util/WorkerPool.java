@@ -0,0 +1,195 @@
+package de.terrestris.shogun.migrator.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of one migration phase on a bounded number of virtual threads. Submitting blocks while the pool is
+ * saturated, so a producer never gets ahead of the workers by more than the parallelism. A failing task is logged and
+ * recorded, it does not abort the other tasks. A {@link #queued(String, int) queued} pool never blocks the submitter
+ * instead, so it can be used as a pipeline stage fed by the tasks of another pool.
+ */
+@Log4j2
+public class WorkerPool implements AutoCloseable {
+
+  @FunctionalInterface
+  public interface Task {
+
+    void run() throws Exception;
+
+  }
+
+  /**
+   * A failed task.
+   *
+   * @param name  the name of the entity the task was working on
+   * @param error the cause
+   */
+  public record Failure(String name, Exception error) {
+  }
+
+  private final String phase;
+
+  private final ExecutorService executor;
+
+  private final Semaphore permits;
+
+  private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger succeeded = new AtomicInteger();
+
+  private final AtomicInteger finished = new AtomicInteger();
+
+  private int total = 0;
+
+  private final boolean queued;
+
+  private boolean done = false;
+
+  /**
+   * Create a new pool.
+   *
+   * @param phase       the phase name used for logging, e.g. 'layer'
+   * @param parallelism the maximum number of concurrently running tasks. With 1 tasks are run on the calling thread.
+   */
+  public WorkerPool(String phase, int parallelism) {
+    this(phase, parallelism, false);
+  }
+
+  private WorkerPool(String phase, int parallelism, boolean queued) {
+    this.phase = phase;
+    this.queued = queued;
+    this.permits = new Semaphore(Math.max(1, parallelism));
+    this.executor = parallelism > 1 || queued ?
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(phase + "-", 0).factory()) : null;
+  }
+
+  /**
+   * Create a pool that queues submitted tasks instead of blocking, running up to parallelism of them concurrently
+   * alongside the submitting thread, even with a parallelism of 1.
+   *
+   * @param phase       the phase name used for logging, e.g. 'layer permission'
+   * @param parallelism the maximum number of concurrently running tasks
+   * @return the pool
+   */
+  public static WorkerPool queued(String phase, int parallelism) {
+    return new WorkerPool(phase, parallelism, true);
+  }
+
+  /**
+   * Enable progress logging.
+   *
+   * @param total the total number of tasks that will be submitted
+   * @return this pool
+   */
+  public WorkerPool withProgress(int total) {
+    this.total = total;
+    return this;
+  }
+
+  /**
+   * Run the task, blocking while all workers are busy.
+   *
+   * @param name the name of the entity the task is working on
+   * @param task the task
+   */
+  public void submit(String name, Task task) {
+    if (executor == null) {
+      run(name, task);
+      return;
+    }
+    if (queued) {
+      // the waiting tasks are cheap virtual threads, the permits limit how many of them run at once
+      executor.execute(() -> {
+        try {
+          permits.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failures.add(new Failure(name, e));
+          return;
+        }
+        try {
+          run(name, task);
+        } finally {
+          permits.release();
+        }
+      });
+      return;
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MigrationException(e);
+    }
+    executor.execute(() -> {
+      try {
+        run(name, task);
+      } finally {
+        permits.release();
+      }
+    });
+  }
+
+  private void run(String name, Task task) {
+    long start = System.nanoTime();
+    try {
+      task.run();
+      succeeded.incrementAndGet();
+      Metrics.observe("task_duration_seconds", start, "phase", phase, "result", "success");
+    } catch (Exception e) {
+      log.warn("Unable to process {} {}: {}", phase, name, e.getMessage());
+      log.trace("Stack trace:", e);
+      failures.add(new Failure(name, e));
+      Metrics.observe("task_duration_seconds", start, "phase", phase, "result", "failure");
+    }
+    int count = finished.incrementAndGet();
+    if (total > 0 && count % Math.max(1, total / 10) == 0) {
+      log.info("Processed {} of {} {} tasks.", count, total, phase);
+    }
+  }
+
+  /**
+   * Wait for all submitted tasks to finish and log a summary.
+   *
+   * @return the failed tasks
+   */
+  public List<Failure> await() {
+    if (!done) {
+      done = true;
+      if (executor != null) {
+        executor.shutdown();
+        try {
+          while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.debug("Still waiting for {} tasks...", phase);
+          }
+        } catch (InterruptedException e) {
+          executor.shutdownNow();
+          Thread.currentThread().interrupt();
+          throw new MigrationException(e);
+        }
+      }
+      if (failures.isEmpty()) {
+        log.info("Finished {} {} tasks.", succeeded.get(), phase);
+      } else {
+        log.warn("Finished {} {} tasks, {} failed: {}", succeeded.get(), phase, failures.size(),
+          failures.stream().map(Failure::name).toList());
+      }
+    }
+    return List.copyOf(failures);
+  }
+
+  @Override
+  public void close() {
+    await();
+  }
+
+}
@@ -2,16 +2,27 @@ package de.terrestris.shogun.migrator;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.Theme;
 import de.terrestris.shogun.migrator.shogun2.Shogun2Migrator;
+import de.terrestris.shogun.migrator.util.JsonEntity;
 import org.apache.commons.io.IOUtils;
 import org.geotools.api.referencing.FactoryException;
 import org.geotools.api.referencing.operation.TransformException;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 class MigratorTest {
 
@@ -26,6 +37,26 @@ class MigratorTest {
         Assertions.assertArrayEquals(expected, bs);
     }
 
+    @Test
+    void testMigrationWithTemplate(@TempDir Path dir) throws IOException, FactoryException, TransformException {
+        Path toolConfig = dir.resolve("toolConfig.json");
+        Files.writeString(toolConfig, "[{\"name\":\"tool\",\"config\":{\"visible\":true}}]");
+        JsonNode node = mapper.readTree(MigratorTest.class.getResource("/1.json"));
+        ObjectNode migrated = Shogun2Migrator.migrateApplicationNode(node, new HashMap<>(),
+            new Legal("contact", null, null), new Theme("#fff", null, null, null, null), toolConfig.toString());
+        List<String> fields = new ArrayList<>();
+        migrated.fieldNames().forEachRemaining(fields::add);
+        Assertions.assertEquals(List.of("name", "toolConfig", "layerTree", "clientConfig"), fields);
+        Assertions.assertEquals("tool", migrated.get("toolConfig").get(0).get("name").asText());
+        Assertions.assertEquals("contact", migrated.get("clientConfig").get("legal").get("contact").asText());
+        Assertions.assertEquals("#fff", migrated.get("clientConfig").get("theme").get("primaryColor").asText());
+        // apart from the template the application is migrated as without one
+        migrated.remove("toolConfig");
+        ((ObjectNode) migrated.get("clientConfig")).remove(List.of("legal", "theme"));
+        byte[] expected = IOUtils.toByteArray(MigratorTest.class.getResource("/migrated/1.json"));
+        Assertions.assertArrayEquals(expected, mapper.writeValueAsBytes(migrated));
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {"/layer1.json", "/layer2.json", "/layer3.json", "/layer4.json", "/layer5.json", "/layer6.json", "/layer7.json", "/layer8.json"})
     void testLayerMigration(String file) throws IOException {
@@ -35,4 +66,15 @@ class MigratorTest {
         Assertions.assertArrayEquals(expected, bs);
     }
 
+    @ParameterizedTest
+    @ValueSource(strings = {"/layer1.json", "/layer2.json", "/layer3.json", "/layer4.json", "/layer5.json", "/layer6.json", "/layer7.json", "/layer8.json"})
+    void testLayerEntity(String file) throws IOException {
+        JsonNode node = mapper.readTree(MigratorTest.class.getResource(file));
+        String type = Shogun2Migrator.layerType(node);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        new JsonEntity(gen -> Shogun2Migrator.writeLayer(node, type, null, gen)).writeTo(bout);
+        byte[] expected = IOUtils.toByteArray(MigratorTest.class.getResource("/migratedlayer" + file));
+        Assertions.assertArrayEquals(expected, bout.toByteArray());
+    }
+
 }
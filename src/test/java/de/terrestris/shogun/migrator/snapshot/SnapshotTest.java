@@ -0,0 +1,44 @@
+package de.terrestris.shogun.migrator.snapshot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class SnapshotTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @ParameterizedTest
+    @ValueSource(strings = {"snapshot.bin", "snapshot.bin.gz"})
+    void testRoundTrip(String name, @TempDir Path dir) throws IOException {
+        Path file = dir.resolve(name);
+        List<JsonNode> layers = List.of(
+            mapper.readTree(SnapshotTest.class.getResource("/layer1.json")),
+            mapper.readTree(SnapshotTest.class.getResource("/layer2.json"))
+        );
+        JsonNode app = mapper.readTree(SnapshotTest.class.getResource("/1.json"));
+        try (SnapshotWriter writer = new SnapshotWriter(file, "shogun2")) {
+            writer.write(SnapshotWriter.LAYER, layers.get(0));
+            writer.write(SnapshotWriter.APPLICATION, app);
+            writer.write(SnapshotWriter.LAYER, layers.get(1));
+        }
+
+        SnapshotReader reader = new SnapshotReader(file);
+        Assertions.assertEquals("shogun2", reader.readSourceType());
+        List<JsonNode> readLayers = new ArrayList<>();
+        Assertions.assertEquals(2, reader.forEach(SnapshotWriter.LAYER, readLayers::add));
+        Assertions.assertEquals(layers, readLayers);
+        List<JsonNode> readApps = new ArrayList<>();
+        Assertions.assertEquals(1, reader.forEach(SnapshotWriter.APPLICATION, readApps::add));
+        Assertions.assertEquals(app, readApps.get(0));
+    }
+
+}
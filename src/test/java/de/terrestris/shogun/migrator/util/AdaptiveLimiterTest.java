@@ -0,0 +1,50 @@
+package de.terrestris.shogun.migrator.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+class AdaptiveLimiterTest {
+
+    private static void call(AdaptiveLimiter limiter, String operation, long millis) throws Exception {
+        limiter.run(operation, () -> {
+            Thread.sleep(millis);
+            return null;
+        });
+    }
+
+    @Test
+    void testSlowerOperationKeepsLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 8);
+        for (int i = 0; i < 20; ++i) {
+            call(limiter, "create layers", 1);
+        }
+        for (int i = 0; i < 10; ++i) {
+            call(limiter, "create applications", 30);
+        }
+        Assertions.assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void testLatencyIncreaseCutsLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 8);
+        for (int i = 0; i < 20; ++i) {
+            call(limiter, "create layers", 1);
+        }
+        for (int i = 0; i < 10; ++i) {
+            call(limiter, "create layers", 30);
+        }
+        Assertions.assertTrue(limiter.getLimit() < 8);
+    }
+
+    @Test
+    void testTransientFailureCutsLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 8);
+        Assertions.assertThrows(IOException.class, () -> limiter.run("create layers", () -> {
+            throw new HttpStatusException("POST", 503);
+        }));
+        Assertions.assertTrue(limiter.getLimit() < 8);
+    }
+
+}
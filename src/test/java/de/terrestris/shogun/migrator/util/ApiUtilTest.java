@@ -0,0 +1,48 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ApiUtilTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static boolean isLastPage(String json, int page, int size) throws Exception {
+        JsonNode node = MAPPER.readTree(json);
+        return ApiUtil.isLastPage(node, node.has("content") ? node.get("content") : node, page, size);
+    }
+
+    @Test
+    void testUnpagedResponse() throws Exception {
+        Assertions.assertTrue(isLastPage("[{\"id\": 1}, {\"id\": 2}]", 0, 2));
+    }
+
+    @Test
+    void testEmptyPage() throws Exception {
+        Assertions.assertTrue(isLastPage("{\"content\": [], \"last\": false, \"totalPages\": 5}", 1, 2));
+    }
+
+    @Test
+    void testLastFlag() throws Exception {
+        Assertions.assertFalse(isLastPage("{\"content\": [{\"id\": 1}], \"last\": false}", 0, 2));
+        Assertions.assertTrue(isLastPage("{\"content\": [{\"id\": 1}, {\"id\": 2}], \"last\": true}", 0, 2));
+    }
+
+    @Test
+    void testTotalPages() throws Exception {
+        Assertions.assertFalse(isLastPage("{\"content\": [{\"id\": 1}, {\"id\": 2}], \"totalPages\": 2}", 0, 2));
+        Assertions.assertTrue(isLastPage("{\"content\": [{\"id\": 1}, {\"id\": 2}], \"totalPages\": 2}", 1, 2));
+        // newer Spring Data versions
+        Assertions.assertFalse(isLastPage("{\"content\": [{\"id\": 1}], \"page\": {\"totalPages\": 3}}", 1, 2));
+        Assertions.assertTrue(isLastPage("{\"content\": [{\"id\": 1}], \"page\": {\"totalPages\": 3}}", 2, 2));
+    }
+
+    @Test
+    void testShortPage() throws Exception {
+        Assertions.assertFalse(isLastPage("{\"content\": [{\"id\": 1}, {\"id\": 2}]}", 0, 2));
+        Assertions.assertTrue(isLastPage("{\"content\": [{\"id\": 1}]}", 0, 2));
+    }
+
+}
@@ -0,0 +1,67 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.terrestris.shogun.migrator.model.Legal;
+import de.terrestris.shogun.migrator.model.Theme;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class ApplicationTemplateTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path dir;
+
+    private static ObjectNode json(String json) throws Exception {
+        return (ObjectNode) MAPPER.readTree(json);
+    }
+
+    @Test
+    void testEmptyTemplate() throws Exception {
+        Assertions.assertSame(ApplicationTemplate.NONE, ApplicationTemplate.of(null, null, null));
+        Assertions.assertSame(ApplicationTemplate.NONE,
+            ApplicationTemplate.of(new Legal(null, "", null), new Theme(null, null, null, null, null), ""));
+        ObjectNode application = json("{\"name\": \"a\", \"clientConfig\": {\"legal\": {\"imprint\": \"i\"}}}");
+        Assertions.assertEquals(application.deepCopy(), ApplicationTemplate.NONE.apply(application));
+    }
+
+    @Test
+    void testApplyReplacesValues() throws Exception {
+        Path toolConfig = dir.resolve("toolConfig.json");
+        Files.writeString(toolConfig, "[{\"name\": \"tool\"}]");
+        ApplicationTemplate template = ApplicationTemplate.of(new Legal("c", null, "p"),
+            new Theme(null, "#000", null, "logo.png", null), toolConfig.toString());
+        ObjectNode application = template.apply(json("{\"name\": \"a\", \"toolConfig\": [], " +
+            "\"clientConfig\": {\"mapView\": {}, \"legal\": {\"imprint\": \"i\"}}}"));
+        Assertions.assertEquals(json("{\"name\": \"a\", \"toolConfig\": [{\"name\": \"tool\"}], " +
+            "\"clientConfig\": {\"mapView\": {}, \"legal\": {\"contact\": \"c\", \"privacy\": \"p\"}, " +
+            "\"theme\": {\"secondaryColor\": \"#000\", \"logoPath\": \"logo.png\"}}}"), application);
+        // a missing client config is created
+        Assertions.assertTrue(template.apply(json("{\"name\": \"b\"}")).get("clientConfig").has("legal"));
+    }
+
+    @Test
+    void testApplicationsGetCopies() throws Exception {
+        ApplicationTemplate template = ApplicationTemplate.of(new Legal("c", null, null), null, null);
+        ObjectNode first = template.apply(json("{\"name\": \"a\"}"));
+        ((ObjectNode) first.get("clientConfig").get("legal")).put("contact", "changed");
+        ObjectNode second = template.apply(json("{\"name\": \"b\"}"));
+        Assertions.assertEquals("c", second.get("clientConfig").get("legal").get("contact").asText());
+    }
+
+    @Test
+    void testInvalidToolConfig() throws Exception {
+        Path toolConfig = dir.resolve("toolConfig.json");
+        Files.writeString(toolConfig, "[{");
+        Assertions.assertThrows(MigrationException.class, () -> ApplicationTemplate.of(null, null, toolConfig.toString()));
+        Assertions.assertThrows(MigrationException.class,
+            () -> ApplicationTemplate.of(null, null, dir.resolve("missing.json").toString()));
+    }
+
+}
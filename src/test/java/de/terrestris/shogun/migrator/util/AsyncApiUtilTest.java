@@ -0,0 +1,165 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.terrestris.shogun.migrator.model.HostDto;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+class AsyncApiUtilTest {
+
+    private HttpServer server;
+
+    private HostDto host;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final List<String> bodies = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        host = new HostDto("http://127.0.0.1:" + server.getAddress().getPort() + "/", "user", "password");
+        host.setToken("token");
+        host.setMaxConnections(8);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        host.close();
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bs = body.getBytes(UTF_8);
+        exchange.sendResponseHeaders(status, bs.length == 0 ? -1 : bs.length);
+        if (bs.length > 0) {
+            exchange.getResponseBody().write(bs);
+        }
+        exchange.close();
+    }
+
+    private static ObjectNode layer() {
+        return JsonNodeFactory.instance.objectNode().put("name", "test");
+    }
+
+    private static Throwable failure(Runnable join) {
+        CompletionException e = Assertions.assertThrows(CompletionException.class, join::run);
+        return e.getCause();
+    }
+
+    @Test
+    void testFetchDecodesGzipResponse() throws Exception {
+        server.createContext("/rest/projectlayers", exchange -> {
+            Assertions.assertEquals("gzip", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write("[{\"id\":1},{\"id\":2}]".getBytes(UTF_8));
+            }
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, out.size());
+            exchange.getResponseBody().write(out.toByteArray());
+            exchange.close();
+        });
+        JsonNode node = AsyncApiUtil.fetch(host, "rest/projectlayers", false).join();
+        Assertions.assertEquals(2, node.size());
+        Assertions.assertEquals(2, node.get(1).get("id").intValue());
+    }
+
+    @Test
+    void testSaveSendsCompressedBody() {
+        host.setGzipRequests(true);
+        server.createContext("/layers", exchange -> {
+            Assertions.assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            try (InputStream in = new GZIPInputStream(exchange.getRequestBody())) {
+                bodies.add(new String(in.readAllBytes(), UTF_8));
+            }
+            respond(exchange, 201, "{\"id\":42}");
+        });
+        Assertions.assertEquals(42, AsyncApiUtil.saveLayer(layer(), host, null).join());
+        Assertions.assertEquals(1, bodies.size());
+        Assertions.assertTrue(bodies.get(0).contains("\"name\":\"test\""));
+    }
+
+    @Test
+    void testPostIsNotRetriedIfItMayHaveBeenProcessed() {
+        server.createContext("/layers", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 503, "");
+        });
+        Throwable cause = failure(() -> AsyncApiUtil.saveLayer(layer(), host, null).join());
+        Assertions.assertInstanceOf(HttpStatusException.class, cause);
+        Assertions.assertEquals(1, requests.get());
+    }
+
+    @Test
+    void testPostIsRetriedIfUnprocessed() {
+        server.createContext("/layers", exchange -> {
+            if (requests.incrementAndGet() == 1) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                respond(exchange, 503, "");
+            } else {
+                respond(exchange, 201, "{\"id\":7}");
+            }
+        });
+        Assertions.assertEquals(7, AsyncApiUtil.saveLayer(layer(), host, null).join());
+        Assertions.assertEquals(2, requests.get());
+    }
+
+    @Test
+    void testWritesPassLimiter() {
+        host.setRetries(2);
+        server.createContext("/layers/3", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 502, "");
+        });
+        failure(() -> AsyncApiUtil.saveLayer(layer(), host, 3).join());
+        // the update is retried and the transient failure has cut the limit of the host
+        Assertions.assertEquals(2, requests.get());
+        Assertions.assertTrue(host.getLimiter().getLimit() < 8);
+    }
+
+    @Test
+    void testDeleteRenewsRejectedToken() throws Exception {
+        host.setClientId("client");
+        server.createContext("/auth/realms/SHOGun/protocol/openid-connect/token", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 200, "{\"access_token\":\"token" + requests.incrementAndGet() + "\",\"expires_in\":300}");
+        });
+        server.createContext("/layers/3", exchange -> {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            bodies.add(authorization);
+            respond(exchange, authorization.equals("Bearer token1") ? 401 : 200, "");
+        });
+        ApiUtil.getToken(host);
+        AsyncApiUtil.delete(host, "layers/3").join();
+        Assertions.assertEquals(List.of("Bearer token1", "Bearer token2"), bodies);
+    }
+
+    @Test
+    void testMakeLayerPublicFailsOnRejection() {
+        server.createContext("/layers/3/permissions/public", exchange -> respond(exchange, 403, ""));
+        Throwable cause = failure(() -> AsyncApiUtil.makeLayerPublic(host, 3).join());
+        Assertions.assertEquals(403, ((HttpStatusException) cause).getStatusCode());
+    }
+
+}
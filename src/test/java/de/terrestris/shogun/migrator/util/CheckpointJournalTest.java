@@ -0,0 +1,127 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+class CheckpointJournalTest {
+
+    private static final Instant START = Instant.parse("2024-05-01T12:00:00Z");
+
+    @TempDir
+    Path dir;
+
+    private static JsonNode entity(String modified) {
+        return JsonNodeFactory.instance.objectNode().put("id", 1).put("modified", modified);
+    }
+
+    @Test
+    void testReloadsRecords() throws IOException {
+        Path file = dir.resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.recordLayer(1, 101);
+            journal.recordLayer(2, 102);
+            journal.recordApplication(5, 105);
+            journal.start(START);
+            journal.commit();
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            Assertions.assertEquals(Map.of(1, 101, 2, 102), journal.getLayers());
+            Assertions.assertEquals(105, journal.getApplication(5));
+            Assertions.assertNull(journal.getApplication(6));
+            Assertions.assertEquals(START.minus(CheckpointJournal.WATERMARK_MARGIN), journal.getWatermark());
+        }
+    }
+
+    @Test
+    void testDoesNotReloadWithoutResume() throws IOException {
+        Path file = dir.resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.recordLayer(1, 101);
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            Assertions.assertTrue(journal.getLayers().isEmpty());
+        }
+        Assertions.assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    void testTruncatesTornRecord() throws IOException {
+        Path file = dir.resolve("journal");
+        Files.writeString(file, "L 1 101\nL 2 10", UTF_8);
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            Assertions.assertEquals(Map.of(1, 101), journal.getLayers());
+            journal.recordLayer(3, 103);
+        }
+        Assertions.assertEquals("L 1 101\nL 3 103\n", Files.readString(file, UTF_8));
+    }
+
+    @Test
+    void testNeedsMigration() throws IOException {
+        Path file = dir.resolve("journal");
+        Files.writeString(file, "L 1 101\nM 2024-05-01T12:00:00Z\n", UTF_8);
+        try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+            // resuming only migrates new entities
+            Assertions.assertTrue(journal.needsMigration(null, entity("2024-04-01T00:00:00Z")));
+            Assertions.assertFalse(journal.needsMigration(101, entity("2024-06-01T00:00:00Z")));
+        }
+        try (CheckpointJournal journal = new CheckpointJournal(file, false, true)) {
+            Assertions.assertFalse(journal.needsMigration(101, entity("2024-04-01T00:00:00Z")));
+            Assertions.assertFalse(journal.needsMigration(101, entity("2024-05-01T12:00:00Z")));
+            Assertions.assertTrue(journal.needsMigration(101, entity("2024-05-01T12:00:01Z")));
+            Assertions.assertTrue(journal.needsMigration(101, entity("2024-05-01T14:00:01+02:00")));
+            Assertions.assertTrue(journal.needsMigration(101, entity("invalid")));
+            Assertions.assertTrue(journal.needsMigration(101, JsonNodeFactory.instance.objectNode()));
+        }
+    }
+
+    @Test
+    void testKeepsWatermarkOfIncompleteRun() throws IOException {
+        Path file = dir.resolve("journal");
+        Files.writeString(file, "M 2024-04-01T00:00:00Z\n", UTF_8);
+        try (CheckpointJournal journal = new CheckpointJournal(file, false, true)) {
+            journal.start(START);
+            journal.recordLayer(1, 101);
+            journal.markIncomplete();
+            journal.commit();
+            Assertions.assertEquals(Instant.parse("2024-04-01T00:00:00Z"), journal.getWatermark());
+        }
+        Assertions.assertEquals("M 2024-04-01T00:00:00Z\nL 1 101\n", Files.readString(file, UTF_8));
+    }
+
+    @Test
+    void testKeepsWatermarkWithoutSourceTime() throws IOException {
+        Path file = dir.resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.start(null);
+            journal.commit();
+            Assertions.assertNull(journal.getWatermark());
+        }
+        Assertions.assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    void testHeldLayerIsRecordedOnRelease() throws IOException {
+        Path file = dir.resolve("journal");
+        try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+            journal.holdLayer(101);
+            journal.recordLayer(1, 101);
+            journal.holdLayer(102);
+            journal.recordLayer(2, 102);
+            Assertions.assertTrue(journal.getLayers().isEmpty());
+            journal.releaseLayer(101);
+        }
+        Assertions.assertEquals("L 1 101\n", Files.readString(file, UTF_8));
+    }
+
+}
@@ -0,0 +1,107 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DeduplicatorTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static JsonNode json(String json) throws Exception {
+        return MAPPER.readTree(json);
+    }
+
+    @Test
+    void testFirstOccurrenceIsSaved() throws Exception {
+        Deduplicator deduplicator = new Deduplicator("layer");
+        AtomicInteger saves = new AtomicInteger();
+        Assertions.assertEquals(1, deduplicator.save(json("{\"name\": \"a\", \"x\": 1}"), saves::incrementAndGet));
+        // same canonical form
+        Assertions.assertEquals(1, deduplicator.save(json("{\"x\": 1.0, \"name\": \"a\", \"id\": 9}"),
+            saves::incrementAndGet));
+        Assertions.assertEquals(2, deduplicator.save(json("{\"name\": \"b\"}"), saves::incrementAndGet));
+        Assertions.assertEquals(2, saves.get());
+    }
+
+    @Test
+    void testLaterOccurrenceWaits() throws Exception {
+        Deduplicator deduplicator = new Deduplicator("layer");
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return deduplicator.save(json("{\"name\": \"a\"}"), () -> {
+                    saving.countDown();
+                    release.await();
+                    return 5;
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertTrue(saving.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return deduplicator.save(json("{\"name\": \"a\"}"), () -> {
+                    throw new AssertionError("the duplicate must not be saved");
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        Assertions.assertFalse(second.isDone());
+        release.countDown();
+        Assertions.assertEquals(5, first.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(5, second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testFailedSaveIsRetriedByNextOccurrence() throws Exception {
+        Deduplicator deduplicator = new Deduplicator("layer");
+        Assertions.assertThrows(IOException.class, () -> deduplicator.save(json("{\"name\": \"a\"}"), () -> {
+            throw new IOException("failed");
+        }));
+        Assertions.assertEquals(3, deduplicator.save(json("{\"name\": \"a\"}"), () -> 3));
+        Assertions.assertEquals(3, deduplicator.save(json("{\"name\": \"a\"}"), () -> 4));
+    }
+
+    @Test
+    void testWaitingOccurrenceSavesIfFirstFails() throws Exception {
+        Deduplicator deduplicator = new Deduplicator("layer");
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return deduplicator.save(json("{\"name\": \"a\"}"), () -> {
+                    saving.countDown();
+                    release.await();
+                    throw new IOException("failed");
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertTrue(saving.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return deduplicator.save(json("{\"name\": \"a\"}"), () -> 7);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        release.countDown();
+        Assertions.assertEquals(7, second.get(5, TimeUnit.SECONDS));
+        Assertions.assertThrows(Exception.class, () -> first.get(5, TimeUnit.SECONDS));
+    }
+
+}
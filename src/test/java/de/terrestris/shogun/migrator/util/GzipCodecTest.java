@@ -0,0 +1,67 @@
+package de.terrestris.shogun.migrator.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+class GzipCodecTest {
+
+    private static final byte[] BODY = "{\"name\":\"layer\",\"layers\":\"a,b,c\"}".repeat(100).getBytes(UTF_8);
+
+    private static long bytes(String direction, String form) {
+        return Metrics.value(GzipCodec.BYTES, "direction", direction, "form", form);
+    }
+
+    @Test
+    void testEntityRoundTrip() throws IOException {
+        long sentWire = bytes("sent", "wire");
+        long sentDecoded = bytes("sent", "decoded");
+        long receivedWire = bytes("received", "wire");
+        long receivedDecoded = bytes("received", "decoded");
+
+        HttpEntity compressed = GzipCodec.compress(new ByteArrayEntity(BODY));
+        Assertions.assertEquals("gzip", compressed.getContentEncoding().getValue());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compressed.writeTo(out);
+        Assertions.assertTrue(out.size() < BODY.length);
+        Assertions.assertEquals(out.size(), bytes("sent", "wire") - sentWire);
+        Assertions.assertEquals(BODY.length, bytes("sent", "decoded") - sentDecoded);
+
+        ByteArrayEntity response = new ByteArrayEntity(out.toByteArray());
+        response.setContentEncoding("gzip");
+        HttpEntity decoded = GzipCodec.decode(response, null);
+        Assertions.assertNull(decoded.getContentEncoding());
+        Assertions.assertArrayEquals(BODY, EntityUtils.toByteArray(decoded));
+        Assertions.assertEquals(out.size(), bytes("received", "wire") - receivedWire);
+        Assertions.assertEquals(BODY.length, bytes("received", "decoded") - receivedDecoded);
+    }
+
+    @Test
+    void testUncompressedEntity() throws IOException {
+        long sentWire = bytes("sent", "wire");
+        long receivedDecoded = bytes("received", "decoded");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GzipCodec.count(new ByteArrayEntity(BODY)).writeTo(out);
+        Assertions.assertArrayEquals(BODY, out.toByteArray());
+        Assertions.assertEquals(BODY.length, bytes("sent", "wire") - sentWire);
+        Assertions.assertArrayEquals(BODY, EntityUtils.toByteArray(GzipCodec.decode(new ByteArrayEntity(BODY), null)));
+        Assertions.assertEquals(BODY.length, bytes("received", "decoded") - receivedDecoded);
+    }
+
+    @Test
+    void testByteArrayRoundTrip() throws IOException {
+        long sentWire = bytes("sent", "wire");
+        byte[] compressed = GzipCodec.compress(BODY);
+        Assertions.assertEquals(compressed.length, bytes("sent", "wire") - sentWire);
+        Assertions.assertArrayEquals(BODY, GzipCodec.decode(compressed, "gzip"));
+        Assertions.assertArrayEquals(BODY, GzipCodec.decode(BODY, null));
+    }
+
+}
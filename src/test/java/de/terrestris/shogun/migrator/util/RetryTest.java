@@ -0,0 +1,43 @@
+package de.terrestris.shogun.migrator.util;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+class RetryTest {
+
+    @Test
+    void testDelayIsBounded() {
+        for (int attempt = 1; attempt <= 100; ++attempt) {
+            long delay = Retry.delay(attempt);
+            Assertions.assertTrue(delay >= 500 && delay <= 30_000, "attempt " + attempt + ": " + delay);
+        }
+        Assertions.assertEquals(30_000, Retry.delay(1, new HttpStatusException("POST", 503, 3_600_000L)));
+        Assertions.assertTrue(Retry.delay(1, new HttpStatusException("POST", 503, 5_000L)) >= 5_000);
+    }
+
+    @Test
+    void testIdempotentCalls() {
+        Assertions.assertTrue(Retry.isTransient(new SocketTimeoutException(), true));
+        Assertions.assertTrue(Retry.isTransient(new HttpStatusException("PUT", 502), true));
+        Assertions.assertFalse(Retry.isTransient(new HttpStatusException("PUT", 400), true));
+        Assertions.assertFalse(Retry.isTransient(new InvalidResponseException("PUT did not return an id"), true));
+    }
+
+    @Test
+    void testCallsThatAreNotIdempotent() {
+        Assertions.assertTrue(Retry.isTransient(new ConnectException(), false));
+        Assertions.assertTrue(Retry.isTransient(new ConnectTimeoutException(), false));
+        Assertions.assertTrue(Retry.isTransient(new HttpStatusException("POST", 429), false));
+        Assertions.assertTrue(Retry.isTransient(new HttpStatusException("POST", 503, 1000L), false));
+        Assertions.assertFalse(Retry.isTransient(new HttpStatusException("POST", 503), false));
+        Assertions.assertFalse(Retry.isTransient(new HttpStatusException("POST", 504), false));
+        Assertions.assertFalse(Retry.isTransient(new SocketTimeoutException(), false));
+        Assertions.assertFalse(Retry.isTransient(new IOException("Connection reset"), false));
+    }
+
+}
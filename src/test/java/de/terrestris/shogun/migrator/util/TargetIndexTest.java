@@ -0,0 +1,90 @@
+package de.terrestris.shogun.migrator.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TargetIndexTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static JsonNode json(String json) throws Exception {
+        return MAPPER.readTree(json);
+    }
+
+    private static String hash(String json) throws Exception {
+        return TargetIndex.hash(json(json));
+    }
+
+    @Test
+    void testHashIgnoresFieldOrder() throws Exception {
+        Assertions.assertEquals(hash("{\"a\": 1, \"b\": {\"c\": 2, \"d\": 3}}"),
+            hash("{\"b\": {\"d\": 3, \"c\": 2}, \"a\": 1}"));
+        // array order does matter
+        Assertions.assertNotEquals(hash("{\"a\": [1, 2]}"), hash("{\"a\": [2, 1]}"));
+    }
+
+    @Test
+    void testHashIgnoresNulls() throws Exception {
+        Assertions.assertEquals(hash("{\"a\": 1}"), hash("{\"a\": 1, \"b\": null}"));
+        Assertions.assertEquals(hash("{\"a\": {\"b\": 1}}"), hash("{\"a\": {\"b\": 1, \"c\": null}}"));
+        Assertions.assertNotEquals(hash("{\"a\": [1]}"), hash("{\"a\": [1, null]}"));
+    }
+
+    @Test
+    void testHashNormalizesNumbers() throws Exception {
+        Assertions.assertEquals(hash("{\"a\": 1}"), hash("{\"a\": 1.0}"));
+        Assertions.assertEquals(hash("{\"a\": 0.5}"), hash("{\"a\": 5e-1}"));
+        Assertions.assertNotEquals(hash("{\"a\": 1}"), hash("{\"a\": 1.5}"));
+        Assertions.assertNotEquals(hash("{\"a\": 1}"), hash("{\"a\": \"1\"}"));
+    }
+
+    @Test
+    void testHashIgnoresRootIdAndTimestamps() throws Exception {
+        Assertions.assertEquals(hash("{\"name\": \"a\"}"),
+            hash("{\"id\": 3, \"name\": \"a\", \"created\": \"2024-01-01\", \"modified\": \"2024-02-01\"}"));
+        // nested ids, e.g. layer ids in the layer tree, are content
+        Assertions.assertNotEquals(hash("{\"tree\": {\"id\": 1}}"), hash("{\"tree\": {\"id\": 2}}"));
+    }
+
+    @Test
+    void testUniqueIdentity() throws Exception {
+        TargetIndex index = new TargetIndex();
+        index.addApplication(json("{\"id\": 1, \"name\": \"a\", \"x\": 1}"));
+        TargetIndex.Entry entry = index.findApplication(json("{\"name\": \"a\", \"x\": 2}"));
+        Assertions.assertEquals(1, entry.id());
+        Assertions.assertFalse(entry.matches(json("{\"name\": \"a\", \"x\": 2}")));
+        // a second application with the same name must not overwrite the same target application
+        Assertions.assertNull(index.findApplication(json("{\"name\": \"a\", \"x\": 3}")));
+        Assertions.assertNull(index.findApplication(json("{\"name\": \"b\"}")));
+    }
+
+    @Test
+    void testAmbiguousIdentity() throws Exception {
+        TargetIndex index = new TargetIndex();
+        index.addApplication(json("{\"id\": 1, \"name\": \"a\", \"x\": 1}"));
+        index.addApplication(json("{\"id\": 2, \"name\": \"a\", \"x\": 2}"));
+        index.addApplication(json("{\"id\": 3, \"name\": \"a\", \"x\": 3}"));
+        Assertions.assertEquals(2, index.findApplication(json("{\"name\": \"a\", \"x\": 2}")).id());
+        Assertions.assertThrows(MigrationException.class,
+            () -> index.findApplication(json("{\"name\": \"a\", \"x\": 4}")));
+        Assertions.assertEquals(1, index.findApplication(json("{\"name\": \"a\", \"x\": 1}")).id());
+        // only one is left, so it's not ambiguous anymore
+        Assertions.assertEquals(3, index.findApplication(json("{\"name\": \"a\", \"x\": 4}")).id());
+        Assertions.assertNull(index.findApplication(json("{\"name\": \"a\", \"x\": 5}")));
+    }
+
+    @Test
+    void testGetById() throws Exception {
+        TargetIndex index = new TargetIndex();
+        index.addLayer(json("{\"id\": 1, \"name\": \"l\", \"sourceConfig\": {\"url\": \"u\", \"layerNames\": \"n\"}}"));
+        index.addLayer(json("{\"id\": 2, \"name\": \"l\", \"sourceConfig\": {\"url\": \"u\", \"layerNames\": \"n\"}}"));
+        Assertions.assertEquals(2, index.getLayer(2).id());
+        Assertions.assertNull(index.getLayer(3));
+        // the layer recorded in the journal is not handed out again
+        Assertions.assertEquals(1,
+            index.findLayer(json("{\"name\": \"l\", \"sourceConfig\": {\"url\": \"u\", \"layerNames\": \"n\"}}")).id());
+    }
+
+}
@@ -0,0 +1,57 @@
+package de.terrestris.shogun.migrator.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+class TokenBucketTest {
+
+    private static long millis(Runnable runnable) {
+        long start = System.nanoTime();
+        runnable.run();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    void testBurst() {
+        TokenBucket bucket = new TokenBucket("test", 10);
+        // a full bucket allows one second worth of permits right away
+        Assertions.assertTrue(millis(() -> {
+            for (int i = 0; i < 10; ++i) {
+                bucket.acquire(1);
+            }
+        }) < 300);
+        Assertions.assertTrue(millis(() -> bucket.acquire(5)) >= 200);
+    }
+
+    @Test
+    void testDebt() {
+        TokenBucket bucket = new TokenBucket("test", 100);
+        // more than the capacity goes into debt and waits for it to be paid off
+        long first = millis(() -> bucket.acquire(120));
+        Assertions.assertTrue(first >= 180 && first < 1000, "waited " + first + "ms");
+        // the bucket is empty now, so the next caller waits for its own permits only
+        long second = millis(() -> bucket.acquire(10));
+        Assertions.assertTrue(second >= 80 && second < 1000, "waited " + second + "ms");
+    }
+
+    @Test
+    void testThrottle() throws IOException {
+        TokenBucket bucket = new TokenBucket("test", 100);
+        long start = System.nanoTime();
+        try (InputStream in = bucket.throttle(new ByteArrayInputStream(new byte[150]))) {
+            Assertions.assertEquals(150, in.readAllBytes().length);
+        }
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+    }
+
+    @Test
+    void testInvalidRate() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TokenBucket("test", 0));
+    }
+
+}
@@ -0,0 +1,51 @@
+package de.terrestris.shogun.migrator.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class UrlRewriterTest {
+
+    @Test
+    void testReplacements() {
+        UrlRewriter rewriter = UrlRewriter.parse("https://a/wms::https://b/wms,https://c/wms::https://d/wms");
+        Assertions.assertEquals("https://b/wms", rewriter.rewrite("https://a/wms"));
+        Assertions.assertEquals("https://d/wms", rewriter.rewrite("https://c/wms"));
+        Assertions.assertEquals("https://a/wms?x=1", rewriter.rewrite("https://a/wms?x=1"));
+        Assertions.assertNull(rewriter.rewrite(null));
+        Assertions.assertSame(UrlRewriter.NONE, UrlRewriter.parse(null));
+    }
+
+    @Test
+    void testRuleFile(@TempDir Path dir) throws IOException {
+        Path rules = dir.resolve("rules.txt");
+        Files.writeString(rules, """
+            # kind from to
+            exact  https://old.example.com/geoserver/ows  https://exact.example.com/ows
+            prefix https://old.example.com/               https://new.example.com/
+            prefix https://old.example.com/geoserver/     https://new.example.com/gs/
+
+            host   gis.example.com:8080                   gis.example.org
+            """);
+        UrlRewriter rewriter = UrlRewriter.compile(null, rules);
+        Assertions.assertEquals("https://exact.example.com/ows", rewriter.rewrite("https://old.example.com/geoserver/ows"));
+        Assertions.assertEquals("https://new.example.com/gs/wms?layers=a",
+            rewriter.rewrite("https://old.example.com/geoserver/wms?layers=a"));
+        Assertions.assertEquals("https://new.example.com/legend.png", rewriter.rewrite("https://old.example.com/legend.png"));
+        Assertions.assertEquals("http://gis.example.org/geoserver/wms", rewriter.rewrite("http://gis.example.com:8080/geoserver/wms"));
+        Assertions.assertEquals("http://gis.example.com/geoserver/wms", rewriter.rewrite("http://gis.example.com/geoserver/wms"));
+        Assertions.assertEquals("/geoserver/ows", rewriter.rewrite("/geoserver/ows"));
+    }
+
+    @Test
+    void testInvalidRule(@TempDir Path dir) throws IOException {
+        Path rules = dir.resolve("rules.txt");
+        Files.writeString(rules, "regex a b\n");
+        Assertions.assertThrows(MigrationException.class, () -> UrlRewriter.compile(null, rules));
+    }
+
+}